@@ -0,0 +1,8 @@
+#! /bin/sh
+javac -encoding UTF-8 -cp . ticketingsystem/Latency.java
+java -cp . ticketingsystem/Latency cas 64
+java -cp . ticketingsystem/Latency async 64
+java -cp . ticketingsystem/Latency packed 64
+java -cp . ticketingsystem/Latency waitfree 64
+java -cp . ticketingsystem/Latency admission 64
+java -cp . ticketingsystem/Latency admission 64 64
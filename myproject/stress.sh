@@ -0,0 +1,5 @@
+#! /bin/sh
+javac -encoding UTF-8 -cp . ticketingsystem/Stress.java
+for i in $(seq ${1:-1}); do
+    java -cp . ticketingsystem/Stress || exit 1
+done
@@ -0,0 +1,18 @@
+package ticketingsystem;
+
+/* Ways of choosing a seat for a new ticket */
+
+public enum AllocationPolicy {
+
+    /* Take the first free seat after a random start */
+
+    FIRST_FIT,
+
+    /* Prefer seats whose sold intervals end or start exactly where the new one starts or ends */
+
+    BEST_FIT,
+
+    /* Search a home slice of coaches owned by the current thread first, then steal from the others */
+
+    THREAD_AFFINE
+}
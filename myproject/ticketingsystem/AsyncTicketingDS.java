@@ -0,0 +1,67 @@
+package ticketingsystem;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncTicketingDS {
+
+    /* The underlying system. Its routes must only be mutated through this facade */
+
+    final TicketingDS tds;
+
+    /* One single-threaded writer per route, so that buying and refunding never compete on a bitmap */
+
+    final ExecutorService[] route_writer;
+
+    /* Default Constructor */
+
+    public AsyncTicketingDS() {
+        this(5, 8, 100, 10, 16);
+    }
+
+    /* Constructor with input parameters */
+
+    public AsyncTicketingDS(int route_num, int coach_num, int seat_num, int station_num, int thread_num) {
+        tds = new TicketingDS(route_num, coach_num, seat_num, station_num, thread_num);
+        route_writer = new ExecutorService[route_num];
+        for (int i = 0; i < route_num; i++) {
+            final int route = i + 1;
+            route_writer[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "route-writer-" + route);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /* Interface of Buying A Ticket. Completes with null if sold out */
+
+    public CompletableFuture<Ticket> buyTicket(String passenger, int route, int departure, int arrival) {
+        return CompletableFuture.supplyAsync(
+                () -> tds.buyTicketExclusive(passenger, route, departure, arrival), route_writer[route - 1]);
+    }
+
+    /* Interface of Refunding A Ticket */
+
+    public CompletableFuture<Boolean> refundTicket(Ticket ticket) {
+        if (ticket.route < 1 || ticket.route > route_writer.length)
+            return CompletableFuture.completedFuture(false);
+        return CompletableFuture.supplyAsync(
+                () -> tds.refundTicketExclusive(ticket), route_writer[ticket.route - 1]);
+    }
+
+    /* Interface of Inquiry Remaining Tickets. Runs on the caller concurrently with the writers */
+
+    public int inquiry(int route, int departure, int arrival) {
+        return tds.inquiry(route, departure, arrival);
+    }
+
+    /* Stop the route writers after the queued operations are done */
+
+    public void shutdown() {
+        for (ExecutorService writer : route_writer)
+            writer.shutdown();
+    }
+
+}
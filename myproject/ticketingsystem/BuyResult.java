@@ -0,0 +1,19 @@
+package ticketingsystem;
+
+/* Result of a buy under admission control. ticket is set if status is SOLD, and null if the route had no
+   seat free or turned the buyer away. Results without a ticket are shared, and all are immutable */
+
+public class BuyResult {
+    public enum Status { SOLD, SOLD_OUT, BUSY }
+
+    static final BuyResult SOLD_OUT = new BuyResult(Status.SOLD_OUT, null);
+    static final BuyResult BUSY = new BuyResult(Status.BUSY, null);
+
+    public final Status status;
+    public final Ticket ticket;
+
+    BuyResult(Status status, Ticket ticket) {
+        this.status = status;
+        this.ticket = ticket;
+    }
+}
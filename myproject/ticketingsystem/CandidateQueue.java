@@ -0,0 +1,47 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/* A bounded lock-free queue of seat indices that were recently seen free. When full, new seats
+   overwrite the oldest ones, so entries are hints and must be verified by the taker */
+
+final class CandidateQueue {
+
+    /* Entries keep (seat index + 1) and 0 means empty */
+
+    private final AtomicIntegerArray slot;
+    private final AtomicInteger tail = new AtomicInteger(0);
+    private final int mask;
+
+    /* Capacity is rounded up to a power of 2 */
+
+    CandidateQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slot = new AtomicIntegerArray(size);
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    void push(int index) {
+        int pos = tail.getAndIncrement() & mask;
+        slot.lazySet(pos, index + 1);
+    }
+
+    /* Take the newest entry, or return -1 if the queue is empty */
+
+    int pop() {
+        int pos = tail.get();
+        for (int k = 1; k <= mask + 1; k++) {
+            int i = (pos - k) & mask;
+            if (slot.get(i) == 0) continue;
+            int hint = slot.getAndSet(i, 0);
+            if (hint != 0) return hint - 1;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,16 @@
+package ticketingsystem;
+
+/* Result of an approximate inquiry. The exact count lies within count +- bound with 95% confidence,
+   or equals count if exact is set */
+
+public class Estimate {
+    public final int count;
+    public final int bound;
+    public final boolean exact;
+
+    Estimate(int count, int bound, boolean exact) {
+        this.count = count;
+        this.bound = bound;
+        this.exact = exact;
+    }
+}
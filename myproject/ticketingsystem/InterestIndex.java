@@ -0,0 +1,83 @@
+package ticketingsystem;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Subscriptions to the availability of intervals on one route. A subscription is kept in the bucket of every
+   segment of its interval, and mask marks the segments with a non-empty bucket, so that a refund only looks at
+   the buckets of the segments it frees, and most refunds only read mask */
+
+final class InterestIndex {
+
+    private final ConcurrentLinkedQueue<Subscription>[] bucket;
+    private final AtomicInteger mask = new AtomicInteger(0);
+
+    /* A caller waiting for a seat to become free for interval */
+
+    static final class Subscription {
+        final int interval;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final AtomicBoolean fired = new AtomicBoolean(false);
+
+        Subscription(int interval) {
+            this.interval = interval;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    InterestIndex(int station_num) {
+        bucket = new ConcurrentLinkedQueue[station_num];
+        for (int i = 0; i < station_num; i++)
+            bucket[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /* Register a subscription. Add it to the buckets before publishing the bits in mask */
+
+    CompletableFuture<Void> add(int interval) {
+        Subscription subscription = new Subscription(interval);
+        for (int bits = interval; bits != 0; bits &= bits - 1)
+            bucket[Integer.numberOfTrailingZeros(bits)].add(subscription);
+        mask.getAndAccumulate(interval, (a, b) -> a | b);
+        return subscription.future;
+    }
+
+    /* A refund cleared freed on a seat whose bitmap is now record. Fire the subscriptions the seat serves */
+
+    void notify(int freed, int record) {
+
+        int hit = mask.get() & freed;
+
+        for (; hit != 0; hit &= hit - 1) {
+            int b = Integer.numberOfTrailingZeros(hit);
+            Iterator<Subscription> it = bucket[b].iterator();
+            while (it.hasNext()) {
+                Subscription subscription = it.next();
+                if (subscription.fired.get() || subscription.future.isDone()) {
+                    it.remove();
+                    continue;
+                }
+                if ((record & subscription.interval) != 0) continue;
+                if (subscription.fired.compareAndSet(false, true)) {
+                    it.remove();
+
+                    /* Run the callbacks of the subscriber off the refund path */
+
+                    ForkJoinPool.commonPool().execute(() -> subscription.future.complete(null));
+                }
+            }
+
+            /* Clear the bit of an empty bucket, and set it back if a subscription slipped in meanwhile */
+
+            if (bucket[b].isEmpty()) {
+                mask.getAndAccumulate(~(1 << b), (a, m) -> a & m);
+                if (!bucket[b].isEmpty())
+                    mask.getAndAccumulate(1 << b, (a, m) -> a | m);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package ticketingsystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Latency {
+    private final static int ROUTE_NUM = 10;
+    private final static int COACH_NUM = 10;
+    private final static int SEAT_NUM = 100;
+    private final static int STATION_NUM = 20;
+
+    private final static int TEST_NUM = 100000;
+    private final static int refund = 10;
+    private final static int buy = 30;
+    private final static int query = 100;
+
+    private final static AtomicInteger threadId = new AtomicInteger(0);
+
+    /* Tickets sold, for the goodput of every mode */
+
+    private final static AtomicLong sold = new AtomicLong(0);
+
+    /* Latency of every buy / refund in nanoseconds, one array per thread */
+
+    private static long[][] latency;
+    private static int[] latencyCnt;
+
+    /* Bytes allocated by buy / refund calls of all threads */
+
+    private final static AtomicLong allocated = new AtomicLong(0);
+    private final static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /* Names are made up front, so that building them is not charged to the calls */
+
+    private final static String[] passengers = new String[TEST_NUM];
+
+    static String passengerName(Random rand) {
+        return passengers[rand.nextInt(TEST_NUM)];
+    }
+
+    /* Usage: Latency [cas|async|packed|waitfree|admission] [threadNum] [admissionLimit]
+
+       The admission limit of every route defaults to 1, so that buyers beyond the first are shed while a
+       route is busy */
+
+    public static void main(String[] args) throws InterruptedException {
+        final String mode = args.length > 0 ? args[0] : "cas";
+        final int threadNum = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final int admissionLimit = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final boolean async = mode.equals("async");
+        final boolean packed = mode.equals("packed");
+        final boolean admission = mode.equals("admission");
+
+        for (int i = 0; i < TEST_NUM; i++)
+            passengers[i] = "passenger" + i;
+
+        final TicketingDS tds = async ? null : new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, threadNum);
+        if (mode.equals("waitfree")) tds.setWaitFree(true);
+        if (admission) {
+            tds.setAdaptiveAdmission(true);
+            for (int r = 1; r <= ROUTE_NUM; r++)
+                tds.setAdmissionLimit(r, admissionLimit);
+        }
+        final AsyncTicketingDS ads = async ? new AsyncTicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, threadNum) : null;
+
+        latency = new long[threadNum][TEST_NUM];
+        latencyCnt = new int[threadNum];
+        Thread[] threads = new Thread[threadNum];
+        for (int i = 0; i < threadNum; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random();
+                    int id = threadId.getAndIncrement();
+                    ArrayList<Ticket> soldTicket = new ArrayList<>(TEST_NUM);
+                    long[] soldHandle = new long[TEST_NUM];
+                    String[] soldName = new String[TEST_NUM];
+                    int soldCnt = 0;
+                    int soldNum = 0;
+                    long bytes = 0;
+                    for (int i = 0; i < TEST_NUM; i++) {
+                        int sel = rand.nextInt(query);
+                        int sold = packed ? soldCnt : soldTicket.size();
+                        if (sel < refund && sold > 0) {
+                            int k = rand.nextInt(sold);
+                            long a = threadBean.getCurrentThreadAllocatedBytes();
+                            long s = System.nanoTime();
+                            if (packed) {
+                                tds.refundPacked(soldHandle[k], soldName[k]);
+                            } else {
+                                Ticket ticket = soldTicket.get(k);
+                                if (async) ads.refundTicket(ticket).join();
+                                else tds.refundTicket(ticket);
+                            }
+                            latency[id][latencyCnt[id]++] = System.nanoTime() - s;
+                            bytes += threadBean.getCurrentThreadAllocatedBytes() - a;
+                            if (packed) {
+                                soldHandle[k] = soldHandle[--soldCnt];
+                                soldName[k] = soldName[soldCnt];
+                            } else {
+                                soldTicket.set(k, soldTicket.get(sold - 1));
+                                soldTicket.remove(sold - 1);
+                            }
+                        } else if (refund <= sel && sel < buy) {
+                            String passenger = passengerName(rand);
+                            int route = rand.nextInt(ROUTE_NUM) + 1;
+                            int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                            int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                            long a = threadBean.getCurrentThreadAllocatedBytes();
+                            long s = System.nanoTime();
+                            if (packed) {
+                                long handle = tds.buyPacked(passenger, route, departure, arrival);
+                                latency[id][latencyCnt[id]++] = System.nanoTime() - s;
+                                bytes += threadBean.getCurrentThreadAllocatedBytes() - a;
+                                if (handle != -1) {
+                                    soldHandle[soldCnt] = handle;
+                                    soldName[soldCnt++] = passenger;
+                                    soldNum++;
+                                }
+                                continue;
+                            }
+                            Ticket ticket = async ? ads.buyTicket(passenger, route, departure, arrival).join()
+                                          : admission ? tds.tryBuy(passenger, route, departure, arrival).ticket
+                                                      : tds.buyTicket(passenger, route, departure, arrival);
+                            latency[id][latencyCnt[id]++] = System.nanoTime() - s;
+                            bytes += threadBean.getCurrentThreadAllocatedBytes() - a;
+                            if (ticket != null) {
+                                soldTicket.add(ticket);
+                                soldNum++;
+                            }
+                        } else if (buy <= sel) {
+                            int route = rand.nextInt(ROUTE_NUM) + 1;
+                            int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                            int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                            if (async) ads.inquiry(route, departure, arrival);
+                            else tds.inquiry(route, departure, arrival);
+                        }
+                    }
+                    allocated.addAndGet(bytes);
+                    sold.addAndGet(soldNum);
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threadNum; ++i)
+            threads[i].start();
+        for (int i = 0; i < threadNum; i++)
+            threads[i].join();
+        long end = System.currentTimeMillis();
+        if (async) ads.shutdown();
+
+        report(mode, threadNum, end - start);
+        System.out.println(String.format("Sold: %d Goodput(sold/ms): %.1f", sold.get(), sold.get() / (double) (end - start))
+                + (admission ? " Shed: " + tds.getShedBuying() : ""));
+    }
+
+    /* Merge the samples of all threads and print the tail percentiles of buy / refund */
+
+    private static void report(String mode, int threadNum, long time) {
+        int total = 0;
+        for (int i = 0; i < threadNum; i++)
+            total += latencyCnt[i];
+        long[] all = new long[total];
+        int pos = 0;
+        for (int i = 0; i < threadNum; i++) {
+            System.arraycopy(latency[i], 0, all, pos, latencyCnt[i]);
+            pos += latencyCnt[i];
+        }
+        Arrays.sort(all);
+        long t = (long) (threadNum * TEST_NUM / (double) time);
+        System.out.println(String.format(
+                "Mode: %s ThreadNum: %d P50(us): %.2f P99(us): %.2f P99.9(us): %.2f P99.99(us): %.2f Max(us): %.2f ThroughOut(op/ms): %d Alloc(B/op): %.1f",
+                mode, threadNum, percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999),
+                percentile(all, 0.9999), all.length == 0 ? 0 : all[all.length - 1] / 1000.0, t,
+                total == 0 ? 0 : allocated.get() / (double) total));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+}
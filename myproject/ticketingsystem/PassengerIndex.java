@@ -0,0 +1,145 @@
+package ticketingsystem;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Live TIDs of every passenger, lock-free. A passenger owns a chain of chunks, each twice the size of the one
+   before, whose slots hold TID + 1 or 0 when empty. Slots are numbered across the chain, and slot_of keeps the
+   slot of every live TID, so that a refund goes straight to its slot. Adding a TID first tries the free hint
+   of the chain, a slot freed recently, and only scans the chain when the hint is taken.
+
+   A chain is dropped from the map as soon as its last TID goes, so the map only holds passengers with live
+   tickets. Only the first ticket and the last refund of a passenger go through the map, which may lock a bin
+   of the ConcurrentHashMap */
+
+final class PassengerIndex {
+
+    private static final int FIRST_CHUNK = 2;
+    private static final int MAX_CHUNKS = 30;
+
+    private final ConcurrentHashMap<String, Chain> chain = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray slot_of;
+
+    /* The chunks of a passenger. live counts the TIDs added and not removed yet, and becomes -1 once the
+       chain is retired from the map. Chunk k holds the slots from FIRST_CHUNK * (2^k - 1) on */
+
+    private static final class Chain {
+        final AtomicReferenceArray<AtomicIntegerArray> chunk = new AtomicReferenceArray<>(MAX_CHUNKS);
+        final AtomicInteger live = new AtomicInteger(0);
+        final AtomicInteger free = new AtomicInteger(0);
+
+        Chain() {
+            chunk.set(0, new AtomicIntegerArray(FIRST_CHUNK));
+        }
+    }
+
+    PassengerIndex(int max_tid) {
+        slot_of = new AtomicIntegerArray(max_tid);
+    }
+
+    private static int chunkOf(int slot) {
+        return 31 - Integer.numberOfLeadingZeros(slot / FIRST_CHUNK + 1);
+    }
+
+    private static int offsetOf(int slot, int k) {
+        return slot - FIRST_CHUNK * ((1 << k) - 1);
+    }
+
+    void add(String passenger, int id) {
+
+        /* Count ourselves in a chain that is not retired */
+
+        Chain c;
+        while (true) {
+            c = chain.get(passenger);
+            if (c == null) {
+                Chain created = new Chain();
+                c = chain.putIfAbsent(passenger, created);
+                if (c == null) c = created;
+            }
+            int live = c.live.get();
+            if (live < 0) {
+                chain.remove(passenger, c);
+                continue;
+            }
+            if (c.live.compareAndSet(live, live + 1)) break;
+        }
+
+        /* Take the hinted slot, or else the first empty one. A full chain gets a chunk appended by CAS */
+
+        int hint = c.free.get();
+        if (take(c, hint, id)) {
+            c.free.compareAndSet(hint, hint + 1);
+            return;
+        }
+        for (int k = 0; ; k++) {
+            AtomicIntegerArray slot = c.chunk.get(k);
+            if (slot == null) {
+                c.chunk.compareAndSet(k, null, new AtomicIntegerArray(FIRST_CHUNK << k));
+                slot = c.chunk.get(k);
+            }
+            int base = FIRST_CHUNK * ((1 << k) - 1);
+            for (int i = 0; i < slot.length(); i++) {
+                if (slot.get(i) == 0 && slot.compareAndSet(i, 0, id + 1)) {
+                    slot_of.set(id, base + i);
+                    c.free.compareAndSet(hint, base + i + 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Take a given slot of a chain if it exists and is empty */
+
+    private boolean take(Chain c, int s, int id) {
+        int k = chunkOf(s);
+        AtomicIntegerArray slot = k < MAX_CHUNKS ? c.chunk.get(k) : null;
+        if (slot == null) return false;
+        int i = offsetOf(s, k);
+        if (slot.get(i) != 0 || !slot.compareAndSet(i, 0, id + 1)) return false;
+        slot_of.set(id, s);
+        return true;
+    }
+
+    void remove(String passenger, int id) {
+        Chain c = chain.get(passenger);
+        if (c == null) return;
+        int s = slot_of.get(id);
+        int k = chunkOf(s);
+        AtomicIntegerArray slot = c.chunk.get(k);
+        if (slot == null || !slot.compareAndSet(offsetOf(s, k), id + 1, 0)) return;
+
+        /* Point the hint at the lowest slot known free */
+
+        c.free.getAndAccumulate(s, Math::min);
+
+        /* The last TID retires the chain, unless an add has counted itself in meanwhile */
+
+        if (c.live.decrementAndGet() == 0 && c.live.compareAndSet(0, -1))
+            chain.remove(passenger, c);
+    }
+
+    /* A copy of the live TIDs of a passenger */
+
+    int[] get(String passenger) {
+        Chain c = chain.get(passenger);
+        if (c == null) return new int[0];
+        int[] tid = new int[FIRST_CHUNK];
+        int count = 0;
+        for (int k = 0; k < MAX_CHUNKS; k++) {
+            AtomicIntegerArray slot = c.chunk.get(k);
+            if (slot == null) break;
+            for (int i = 0; i < slot.length(); i++) {
+                int s = slot.get(i);
+                if (s == 0) continue;
+                if (count == tid.length) tid = Arrays.copyOf(tid, count << 1);
+                tid[count++] = s - 1;
+            }
+        }
+        return count == tid.length ? tid : Arrays.copyOf(tid, count);
+    }
+
+}
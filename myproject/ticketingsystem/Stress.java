@@ -0,0 +1,261 @@
+package ticketingsystem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/* Stress driver for the operations beyond buy / refund / inquiry: itineraries, exchange, shortening, holds,
+   the waitlist, elimination hand-off and route cancellation. Small routes keep them crowded. Once all threads
+   are done and the holds have expired, it checks that no two live tickets share a seat segment, that no TID
+   is live twice, and that the seat bitmaps hold exactly the segments of the live tickets */
+
+public class Stress {
+    private final static int ROUTE_NUM = 3;
+    private final static int COACH_NUM = 4;
+    private final static int SEAT_NUM = 10;
+    private final static int STATION_NUM = 8;
+    private final static int THREAD_NUM = 8;
+
+    private final static int TEST_NUM = 20000;
+    private final static int SELL_OUT_NUM = 500;
+
+    /* Holds left unconfirmed expire within HOLD_TTL_MS. The check waits CHECK_DELAY_MS after the threads,
+       well below a round of the timing wheel, so that a hold left behind on the wheel is caught */
+
+    private final static int HOLD_TTL_MS = 2;
+    private final static int CHECK_DELAY_MS = 300;
+
+    private final static String[] modes = {"first_fit", "best_fit", "thread_affine", "linear", "waitfree", "cancel"};
+
+    /* TIDs are never reused within a process, so every process runs each mode once. Repeat from stress.sh */
+
+    public static void main(String[] args) throws InterruptedException {
+        for (String mode : modes)
+            run(mode);
+        System.out.println("Stress OK");
+        System.exit(0);
+    }
+
+    private static void run(String mode) throws InterruptedException {
+        final TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, THREAD_NUM);
+        if (mode.equals("best_fit")) tds.setAllocationPolicy(AllocationPolicy.BEST_FIT);
+        if (mode.equals("thread_affine")) tds.setAllocationPolicy(AllocationPolicy.THREAD_AFFINE);
+        if (mode.equals("linear")) tds.setLinearizableInquiry(true);
+        if (mode.equals("waitfree")) tds.setWaitFree(true);
+        final boolean cancel = mode.equals("cancel");
+
+        final List<Ticket> live = new ArrayList<>();
+        final ConcurrentLinkedQueue<CompletableFuture<Ticket>> waits = new ConcurrentLinkedQueue<>();
+        final Set<Long> cancelled = ConcurrentHashMap.newKeySet();
+        final AtomicInteger itineraries = new AtomicInteger();
+        final AtomicInteger exchanges = new AtomicInteger();
+        final AtomicInteger confirmed = new AtomicInteger();
+
+        Thread[] threads = new Thread[THREAD_NUM];
+        for (int i = 0; i < THREAD_NUM; i++) {
+            final int id = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random();
+                    List<Ticket> mine = new ArrayList<>();
+                    List<CompletableFuture<Ticket>> joined = new ArrayList<>();
+                    for (int i = 0; i < TEST_NUM; i++) {
+
+                        /* One thread cancels the last route half way */
+
+                        if (cancel && id == 0 && i == TEST_NUM / 2)
+                            tds.cancelRoute(ROUTE_NUM).forEach(t -> cancelled.add(t.tid));
+
+                        String passenger = "passenger" + rand.nextInt(64);
+                        int route = rand.nextInt(ROUTE_NUM) + 1;
+                        int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                        int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                        int sel = rand.nextInt(100);
+
+                        if (sel < 20 && !mine.isEmpty()) {
+                            Ticket t = mine.remove(rand.nextInt(mine.size()));
+                            check(tds.refundTicket(t) || tds.isCancelled(t.route), "refund of a live ticket failed");
+                        } else if (sel < 45) {
+                            Ticket t;
+                            if (rand.nextInt(4) == 0) {
+                                long handle = tds.buyPacked(passenger, route, departure, arrival);
+                                t = handle == -1 ? null : tds.ticketOf(handle);
+                            } else {
+                                t = tds.buyTicket(passenger, route, departure, arrival);
+                            }
+                            if (t != null) mine.add(t);
+                        } else if (sel < 55) {
+                            int other = rand.nextInt(ROUTE_NUM) + 1;
+                            int[][] legs = {{route, departure, arrival}, {other, 1, 1 + rand.nextInt(STATION_NUM - 1) + 1}};
+                            Ticket[] t = tds.buyItinerary(passenger, legs);
+                            if (t != null) {
+                                for (Ticket leg : t) mine.add(leg);
+                                itineraries.incrementAndGet();
+                            }
+                        } else if (sel < 63 && !mine.isEmpty()) {
+                            int k = rand.nextInt(mine.size());
+                            Ticket old = mine.get(k);
+                            Ticket t = tds.exchangeTicket(old, departure, arrival);
+                            if (t != null) {
+                                mine.set(k, t);
+                                exchanges.incrementAndGet();
+                            }
+                        } else if (sel < 67 && !mine.isEmpty()) {
+                            Ticket t = mine.get(rand.nextInt(mine.size()));
+                            if (t.arrival - t.departure > 1)
+                                check(tds.shortenTicket(t, t.arrival - 1) || tds.isCancelled(t.route), "shortening a live ticket failed");
+                        } else if (sel < 77) {
+                            long hold = tds.holdTicket(passenger, route, departure, arrival, HOLD_TTL_MS);
+                            if (hold < 0) continue;
+                            int choice = rand.nextInt(3);
+                            if (choice == 0) {
+                                Ticket t = tds.confirmHold(hold);
+                                if (t != null) {
+                                    mine.add(t);
+                                    confirmed.incrementAndGet();
+                                }
+                            } else if (choice == 1) {
+                                tds.releaseHold(hold);
+                            }
+                        } else if (sel < 80) {
+
+                            /* Served waiters become tickets of this thread, so that they are refunded again */
+
+                            joined.removeIf(f -> f.isDone() && (f.isCancelled() || mine.add(f.join())));
+                            CompletableFuture<Ticket> f = tds.joinWaitlist(passenger, route, departure, arrival);
+                            if (rand.nextInt(4) == 0) f.cancel(false);
+                            joined.add(f);
+                        } else {
+                            int cnt = tds.inquiry(route, departure, arrival);
+                            check(cnt >= 0 && cnt <= tds.route_size.get(route - 1), "inquiry out of range");
+                            tds.hasAvailability(route, departure, arrival);
+                            if (tds.linear_inquiry) tds.inquiryLinearizable(route, departure, arrival);
+                        }
+                    }
+                    synchronized (live) {
+                        live.addAll(mine);
+                    }
+                    waits.addAll(joined);
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        long time = System.currentTimeMillis() - start;
+
+        /* Let the holds expire, leave the waitlist, and wait for the hand-overs in flight */
+
+        Thread.sleep(CHECK_DELAY_MS);
+        for (CompletableFuture<Ticket> f : waits) f.cancel(false);
+        ForkJoinPool.commonPool().awaitQuiescence(10, TimeUnit.SECONDS);
+        int served = 0;
+        for (CompletableFuture<Ticket> f : waits) {
+            if (f.isCancelled()) continue;
+            live.add(f.join());
+            served++;
+        }
+
+        /* Tickets of a cancelled route are gone */
+
+        List<Ticket> valid = new ArrayList<>();
+        for (Ticket t : live) {
+            if (tds.isCancelled(t.route)) check(!tds.verifyTicket(t), "ticket of a cancelled route still valid");
+            else valid.add(t);
+        }
+
+        verify(tds, valid);
+        if (tds.wait_free) sellOut(tds, 1);
+
+        System.out.println(String.format(
+                "Mode: %s Time(ms): %d Live: %d Itinerary: %d Exchange: %d Confirmed: %d Waitlist: %d Cancelled: %d",
+                mode, time, valid.size(), itineraries.get(), exchanges.get(), confirmed.get(), served, cancelled.size()));
+    }
+
+    /* Rebuild the bitmaps from the live tickets and compare them with the system */
+
+    private static void verify(TicketingDS tds, List<Ticket> live) {
+        int size = tds.route_size.get(0);
+        int[][] expect = new int[ROUTE_NUM][size];
+        Set<Long> tids = new HashSet<>();
+
+        for (Ticket t : live) {
+            check(tids.add(t.tid), "duplicate TID " + t.tid);
+            check(tds.verifyTicket(t), "live ticket " + t.tid + " does not verify");
+            int index = (t.coach - 1) * SEAT_NUM + t.seat - 1;
+            int bits = 0;
+            for (int s = t.departure; s < t.arrival; s++)
+                bits |= 1 << (s - 1);
+            check((expect[t.route - 1][index] & bits) == 0,
+                    "overlapping tickets on route " + t.route + " seat " + index);
+            expect[t.route - 1][index] |= bits;
+        }
+
+        for (int r = 0; r < ROUTE_NUM; r++) {
+            AtomicIntegerArray record = TicketingDS.seat_record[r];
+            for (int i = 0; i < size; i++)
+                check(record.get(i) == expect[r][i], "route " + (r + 1) + " seat " + i + " holds "
+                        + Integer.toBinaryString(record.get(i)) + " but its tickets "
+                        + Integer.toBinaryString(expect[r][i]));
+        }
+
+        /* Everything refunds, and leaves the routes empty */
+
+        for (Ticket t : live)
+            check(tds.refundTicket(t), "final refund of " + t.tid + " failed");
+        for (int r = 0; r < ROUTE_NUM; r++)
+            for (int i = 0; i < size; i++)
+                check(TicketingDS.seat_record[r].get(i) == 0, "route " + (r + 1) + " seat " + i + " not empty");
+    }
+
+    /* Only buy on an empty route until it is full. Seats are never freed meanwhile, so a buy that found no
+       seat leaves none for its interval to a later inquiry. Refund everything after */
+
+    private static void sellOut(TicketingDS tds, int route) throws InterruptedException {
+        final List<Ticket> sold = new ArrayList<>();
+        Thread[] threads = new Thread[THREAD_NUM];
+        for (int i = 0; i < THREAD_NUM; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                Random rand = new Random(id);
+                List<Ticket> mine = new ArrayList<>();
+                for (int k = 0; k < SELL_OUT_NUM; k++) {
+                    int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                    int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                    Ticket t = tds.buyTicket("sellout" + id, route, departure, arrival);
+                    if (t != null) mine.add(t);
+                    else check(tds.inquiry(route, departure, arrival) == 0,
+                            "wait-free buy of " + departure + "-" + arrival + " found no seat while inquiry finds one");
+                }
+                synchronized (sold) {
+                    sold.addAll(mine);
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        for (Ticket t : sold)
+            check(tds.refundTicket(t), "refund of sold out " + t.tid + " failed");
+        int size = tds.route_size.get(route - 1);
+        for (int i = 0; i < size; i++)
+            check(TicketingDS.seat_record[route - 1].get(i) == 0, "route " + route + " seat " + i + " not empty after selling out");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("Stress FAILED: " + message);
+            System.exit(1);
+        }
+    }
+
+}
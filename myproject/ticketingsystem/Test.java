@@ -33,9 +33,11 @@ public class Test {
 
     public static void main(String[] args) throws InterruptedException {
         final int[] threadNums = {64};
+        final AllocationPolicy policy = args.length > 0 ? AllocationPolicy.valueOf(args[0]) : AllocationPolicy.FIRST_FIT;
         int p;
         for (p = 0; p < threadNums.length; ++p) {
             final TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, threadNums[p]);
+            tds.setAllocationPolicy(policy);
             Thread[] threads = new Thread[threadNums[p]];
             for (int i = 0; i < threadNums[p]; i++) {
                 threads[i] = new Thread(new Runnable() {
@@ -111,6 +113,17 @@ public class Test {
             System.out.println(String.format(
                     "ThreadNum: %d BuyAvgTime(ms): %.5f RefundAvgTime(ms): %.5f InquiryAvgTime(ms): %.5f ThroughOut(op/ms): %d",
                     threadNums[p], buyAvgTime, refundAvgTime, inquiryAvgTime, t));
+
+            /* Whole-trip seats sold per train, and the share of buying requests that scanned a route in vain */
+
+            long sold = 0;
+            for (int route = 1; route <= ROUTE_NUM; route++)
+                sold += tds.getSoldSegments(route);
+            System.out.println("Policy : " + policy);
+            System.out.println("Sold Seats per Train : " + sold / (float) (ROUTE_NUM * (STATION_NUM - 1)));
+            System.out.println("Failure Rate : " + 100 * tds.getFailedBuying() / (float) bTotal + " %");
+            if (policy == AllocationPolicy.THREAD_AFFINE)
+                System.out.println("Steal Rate : " + 100 * tds.getStolenBuying() / (float) bTotal + " %");
             clear();
         }
     }
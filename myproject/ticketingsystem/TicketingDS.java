@@ -1,10 +1,31 @@
 package ticketingsystem;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class TicketingDS implements TicketingSystem {
 
@@ -16,10 +37,14 @@ public class TicketingDS implements TicketingSystem {
     int station_num;
     int thread_num;
 
-    /* Invalid intervals stored in bitmap format */
+    /* Invalid intervals stored in bitmap format. Every route reserves room for the largest seat index getHash
+       can pack, and route_size tells how many seats are in service, so that coaches can be attached online */
+
+    private static final int MAX_RECORD_SIZE = 1 << 14;
 
     static AtomicIntegerArray[] seat_record;
     int record_size;
+    AtomicIntegerArray route_size;
 
     /* Structures to store information of sold tickets */
 
@@ -29,6 +54,445 @@ public class TicketingDS implements TicketingSystem {
 
     long[][] thread_tid;
 
+    /* Live TIDs of every route, one slot per seat and departure station as no two live tickets share both.
+       Slots keep (TID + 1) and 0 means empty, in one array per coach created as coaches are attached */
+
+    AtomicReferenceArray<AtomicIntegerArray>[] live_tid;
+    AtomicIntegerArray route_cancelled;
+
+    /* Live TIDs of every passenger */
+
+    PassengerIndex passengers;
+
+    /* Dedicated pool for inquiries across routes, capped to leave cores for booking */
+
+    volatile ForkJoinPool inquiry_pool;
+    volatile int inquiry_parallelism;
+
+    /* Seat allocation policy and the index of seats adjoining an interval, HINT_WAYS seats per station */
+
+    private static final int HINT_WAYS = 4;
+
+    volatile AllocationPolicy policy = AllocationPolicy.FIRST_FIT;
+    AtomicIntegerArray[] arrive_hint;
+    AtomicIntegerArray[] depart_hint;
+
+    /* Queues of seats recently seen free from a departure station, fed by refunds and the sweeper */
+
+    private static final int CANDIDATE_CAPACITY = 16;
+    private static final int CANDIDATE_TRIES = 2;
+
+    CandidateQueue[][] candidate;
+
+    /* Single background thread for maintenance tasks such as the candidate sweeper */
+
+    ScheduledExecutorService maintainer;
+    ScheduledFuture<?> sweeper;
+
+    /* Availability of every route and interval, published in background for inquiries tolerating staleness */
+
+    volatile Availability availability;
+    ScheduledFuture<?> publisher;
+
+    /* An immutable snapshot. count[route - 1][departure * (station_num + 1) + arrival] is the number of seats
+       free for the interval, and time is when the scan started */
+
+    private static final class Availability {
+        final long time;
+        final int[][] count;
+
+        Availability(long time, int[][] count) {
+            this.time = time;
+            this.count = count;
+        }
+    }
+
+    /* Initial sample size per coach of inquiryEstimate */
+
+    private static final int ESTIMATE_SAMPLE = 8;
+
+    /* In-flight scans of every route, indexed by departure * (station_num + 1) + arrival */
+
+    volatile boolean coalesce_inquiry = false;
+    AtomicReferenceArray<Flight>[] flight;
+
+    /* A shared scan. joiner counts the callers waiting for it and becomes -1 once the scan starts,
+       next is the flight lined up behind it. Callers block on result until the scan completes it, so that
+       waiting costs no processor time however many callers share the scan */
+
+    private static final class Flight {
+        final AtomicInteger joiner = new AtomicInteger(0);
+        final AtomicReference<Flight> next = new AtomicReference<>();
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+    }
+
+    /* Subscriptions to intervals of every route, fired by refunds */
+
+    InterestIndex[] interest;
+
+    /* FIFO waitlist of every route, served by refunds */
+
+    ConcurrentLinkedQueue<Waiter>[] waitlist;
+
+    /* Buyers in the middle of a long search, advertised to concurrent refunds of the same route */
+
+    private static final int ELIMINATION_SIZE = 8;
+    private static final int ELIMINATION_DELAY = 32;
+
+    AtomicReferenceArray<Waiter>[] elimination;
+
+    /* A buyer waiting for a seat, either in the waitlist with a future, or in the elimination array. decision
+       moves once from null to the hand-over that got the waiter a seat, or to CANCELLED when the waiter gives
+       up. A refund claims the seat for the waiter before deciding, so a single CAS settles the waiter */
+
+    static final class Waiter {
+        static final Object CANCELLED = new Object();
+
+        final String passenger;
+        final int departure;
+        final int arrival;
+        final int interval;
+        final AtomicReference<Object> decision = new AtomicReference<>();
+        final CompletableFuture<Ticket> future;
+        int slot;
+
+        Waiter(String passenger, int departure, int arrival, int interval, boolean waitlisted) {
+            this.passenger = passenger;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.interval = interval;
+            this.future = waitlisted ? new CompletableFuture<>() : null;
+        }
+    }
+
+    /* Seats held for unconfirmed bookings. Holds occupy the bitmap like sold tickets and expire on a timing wheel */
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long WHEEL_TICK_MS = 10;
+
+    AtomicLong hold_id = new AtomicLong(0);
+    ConcurrentHashMap<Long, Hold> holds = new ConcurrentHashMap<>();
+    volatile TimingWheel hold_wheel;
+    ScheduledFuture<?> hold_ticker;
+
+    /* A held seat. The state moves from HELD to exactly one of CONFIRMED, RELEASED or EXPIRED */
+
+    private final class Hold extends TimingWheel.Entry {
+        static final int HELD = 0;
+        static final int CONFIRMED = 1;
+        static final int RELEASED = 2;
+        static final int EXPIRED = 3;
+
+        final long id;
+        final String passenger;
+        final int route;
+        final int index;
+        final int departure;
+        final int arrival;
+        final AtomicInteger state = new AtomicInteger(HELD);
+
+        Hold(long id, String passenger, int route, int index, int departure, int arrival) {
+            this.id = id;
+            this.passenger = passenger;
+            this.route = route;
+            this.index = index;
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+
+        /* Give the seat back unless the hold was confirmed or released meanwhile */
+
+        void expire() {
+            if (state.compareAndSet(HELD, EXPIRED)) {
+                holds.remove(id);
+                releaseSeat(route, index, interval(departure, arrival), false);
+            }
+        }
+    }
+
+    /* Claims on seats that take effect later. A claim holds its stations on the seat together with the PENDING
+       bit, which no interval reaches as station_num <= 32, and readers see the stations free until the owner of
+       the claim has succeeded. pending maps (route << 32 | index) to the claim, at most one per seat. Any thread
+       meeting a claim in its way may decide the owner and clear the claim, so a stalled owner keeps no seat */
+
+    private static final int PENDING = 0x80000000;
+
+    ConcurrentHashMap<Long, Claim> pending = new ConcurrentHashMap<>();
+
+    /* The owner of claims. Its status moves once from UNDECIDED to SUCCEEDED or FAILED, by the owner itself
+       or by decide() from a helper */
+
+    private abstract class Pending {
+        static final int UNDECIDED = 0;
+        static final int SUCCEEDED = 1;
+        static final int FAILED = 2;
+
+        abstract int status();
+
+        abstract void decide();
+
+        /* The status of one claim of the owner, and deciding the owner for it. Owners whose claims all take
+           effect together keep these */
+
+        int status(Claim claim) {
+            return status();
+        }
+
+        void decide(Claim claim) {
+            decide();
+        }
+    }
+
+    /* A claim of a seat. pins holds twice the number of threads that may still write the seat for the claim,
+       starting with the installer, and its lowest bit is set once the PENDING bit is gone. The map entry is
+       removed when the last pin goes, so that a pinned claim owns any PENDING bit found on its seat */
+
+    private static final class Claim {
+        final Pending owner;
+        final int route;
+        final int index;
+        final int interval;
+        final AtomicInteger pins = new AtomicInteger(2);
+
+        Claim(Pending owner, int route, int index, int interval) {
+            this.owner = owner;
+            this.route = route;
+            this.index = index;
+            this.interval = interval;
+        }
+    }
+
+    /* An itinerary being bought. The owner claims a seat for every leg in turn, and the whole itinerary takes
+       effect at once when status moves from UNDECIDED to SUCCEEDED. A helper decides SUCCEEDED as well if all
+       legs are claimed by then, and FAILED otherwise, in which case the owner starts over */
+
+    private final class Itinerary extends Pending {
+        final int[] route;
+        final int[] interval;
+        final Claim[] claim;
+        final AtomicInteger status = new AtomicInteger(UNDECIDED);
+        volatile int claimed = 0;
+
+        Itinerary(int legs) {
+            route = new int[legs];
+            interval = new int[legs];
+            claim = new Claim[legs];
+        }
+
+        int status() {
+            return status.get();
+        }
+
+        void decide() {
+            decide(claimed == claim.length ? SUCCEEDED : FAILED);
+        }
+
+        /* The decision changes what readers see on every route of the itinerary, so it is stamped like a seat
+           write when linearizable inquiry is enabled. Snapshots are served before any write starts, so that
+           no write of ours is in flight while we scan */
+
+        void decide(int decision) {
+            if (!linear_inquiry) {
+                status.compareAndSet(UNDECIDED, decision);
+                return;
+            }
+            int[] routes = Arrays.stream(route).distinct().toArray();
+            for (int r : routes)
+                serveSnapshot((r - 1) * LINEAR_STRIDE);
+            for (int r : routes)
+                write_stamp.getAndIncrement((r - 1) * LINEAR_STRIDE);
+            status.compareAndSet(UNDECIDED, decision);
+            for (int r : routes)
+                write_stamp.getAndIncrement((r - 1) * LINEAR_STRIDE + 1);
+        }
+    }
+
+    /* A seat claimed by a refund for a waiter. It succeeds if the waiter is decided for this hand-over, and
+       fails if the waiter has cancelled or got another seat first */
+
+    private final class HandOver extends Pending {
+        final Waiter waiter;
+        final int route;
+        final int index;
+
+        HandOver(Waiter waiter, int route, int index) {
+            this.waiter = waiter;
+            this.route = route;
+            this.index = index;
+        }
+
+        int status() {
+            Object decision = waiter.decision.get();
+            if (decision == null) return UNDECIDED;
+            return decision == this ? SUCCEEDED : FAILED;
+        }
+
+        void decide() {
+            if (!linear_inquiry) {
+                waiter.decision.compareAndSet(null, this);
+                return;
+            }
+            int base = (route - 1) * LINEAR_STRIDE;
+            beginWrite(base);
+            waiter.decision.compareAndSet(null, this);
+            write_stamp.getAndIncrement(base + 1);
+        }
+    }
+
+    /* Wait-free buying and refunding. A buyer kept off a free seat by SEAT_RETRY failed CAS takes the next phase
+       of the route and announces its request in a slot. Every wait-free operation on the route first finishes
+       all requests announced with an older phase than its own, so once a request is announced only the
+       operations already running can get in its way, and each of them only a bounded number of times.
+
+       The bound holds while at most ANNOUNCE_SIZE buyers of a route announce at once, and while wait-free buying
+       and refunding are the only writers of the route. Holds, exchanges, waitlists and itineraries write seats
+       outside the scheme. Two steps are lock-free rather than bounded: clearing a claim retries its CAS
+       against the other writes of the same seat, and in the passenger index the first ticket and the last
+       refund of a passenger may lock a bin of its map */
+
+    private static final int ANNOUNCE_SIZE = 128;
+    private static final int SEAT_RETRY = 2;
+    private static final int CONTENDED = -3;
+
+    volatile boolean wait_free = false;
+    AtomicReferenceArray<Announce>[] announce;
+    AtomicLongArray announce_phase;
+    AtomicIntegerArray announced;
+
+    /* An announced buying request. Helpers claim a seat for it before deciding, so readers see the seat free
+       until the request is decided for that claim. decision moves once from null to the claim that got the
+       request its seat, or to SOLD_OUT, by the owner or by any helper. A claim that lost gives its seat back
+       when cleared, like a failed one of an itinerary */
+
+    private static final Claim SOLD_OUT = new Claim(null, 0, -1, 0);
+
+    private final class Announce extends Pending {
+        final int interval;
+        final long phase;
+        final AtomicReference<Claim> decision = new AtomicReference<>();
+
+        Announce(int interval, long phase) {
+            this.interval = interval;
+            this.phase = phase;
+        }
+
+        int status() {
+            Claim claim = decision.get();
+            if (claim == null) return UNDECIDED;
+            return claim == SOLD_OUT ? FAILED : SUCCEEDED;
+        }
+
+        /* Without a claim, the request is decided to have no seat */
+
+        void decide() {
+            decision.compareAndSet(null, SOLD_OUT);
+        }
+
+        int status(Claim claim) {
+            Claim decided = decision.get();
+            if (decided == null) return UNDECIDED;
+            return decided == claim ? SUCCEEDED : FAILED;
+        }
+
+        /* Deciding for a claim changes what readers see on its seat, so it is stamped like a seat write */
+
+        void decide(Claim claim) {
+            if (!linear_inquiry) {
+                decision.compareAndSet(null, claim);
+                return;
+            }
+            int base = (claim.route - 1) * LINEAR_STRIDE;
+            beginWrite(base);
+            decision.compareAndSet(null, claim);
+            write_stamp.getAndIncrement(base + 1);
+        }
+    }
+
+    /* Admission control of tryBuy. A route admits at most admit_limit buyers at a time and turns the others
+       away with BUSY. With adaptive admission, the limit is halved whenever the sampled CAS failures of the
+       route exceed SHED_FAILURE_PERCENT of its operations, and grows back by one per quiet sample up to
+       admit_cap */
+
+    private static final int SHED_FAILURE_PERCENT = 10;
+
+    volatile boolean adaptive_admission = false;
+    AtomicIntegerArray admitted;
+    AtomicIntegerArray admit_limit;
+    AtomicIntegerArray admit_cap;
+    LongAdder shed_buy = new LongAdder();
+
+    /* Number of buying requests that found no seat, and of those served outside the home slice */
+
+    LongAdder failed_buy = new LongAdder();
+    LongAdder affine_steal = new LongAdder();
+
+    /* Stamps of seat writes for linearizable inquiry. Every route owns a padded block of LINEAR_STRIDE
+       longs holding the number of started writes, of finished writes, and of callers wanting a snapshot.
+       Writers never wait on readers. A reader whose scan was overlapped by a write backs off for up to
+       LINEAR_BACKOFF spins, doubling each time, and after LINEAR_RETRY scans asks for a snapshot.
+
+       While a snapshot is wanted, every writer of the route takes one before its own write and publishes it
+       in snapshot_view. A caller whose scan is overlapped by such a write borrows the published snapshot,
+       which was taken after the caller started. Every thread can overlap a caller with at most two writes
+       taken without a snapshot that recent, so a snapshot costs a bounded number of scans, to readers and
+       writers alike */
+
+    private static final int LINEAR_STRIDE = 16;
+    private static final int LINEAR_BACKOFF = 1 << 10;
+    private static final int LINEAR_RETRY = 8;
+
+    volatile boolean linear_inquiry = false;
+    AtomicLongArray write_stamp;
+    AtomicReferenceArray<View> snapshot_view;
+
+    /* The seat bitmaps of a route as readers see them, copied while stamp writes had started and none was
+       in flight */
+
+    private static final class View {
+        final long stamp;
+        final int[] record;
+
+        View(long stamp, int[] record) {
+            this.stamp = stamp;
+            this.record = record;
+        }
+    }
+
+    /* Contention statistics of every route, sampled to decide when to switch to flat combining */
+
+    private static final int ADAPT_PERIOD = 0x3ff;
+    private static final int HOT_FAILURE_PERCENT = 10;
+    private static final int COLD_BATCH_SIZE = 2;
+
+    LongAdder[] route_ops;
+    LongAdder[] cas_failure;
+    LongAdder[] combine_pass;
+    LongAdder[] combine_request;
+
+    /* Flat combining structures. Hot routes publish requests and one combiner applies them in a single pass */
+
+    AtomicIntegerArray route_hot;
+    AtomicIntegerArray combine_lock;
+    AtomicReferenceArray<Request>[] publication;
+
+    /* A buying (ticket == null) or refunding request waiting for the combiner */
+
+    private static final class Request {
+        final String passenger;
+        final int departure;
+        final int arrival;
+        final Ticket ticket;
+        Ticket result;
+        volatile boolean done;
+
+        Request(String passenger, int departure, int arrival, Ticket ticket) {
+            this.passenger = passenger;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.ticket = ticket;
+        }
+    }
+
     /* Get a number of TIDs for a thread every time to avoid competition */
 
     private long getIdLocal () {
@@ -48,14 +512,33 @@ public class TicketingDS implements TicketingSystem {
     /* Get a compressed record of sold ticket to reduce memory usage */
 
     private int getHash(Ticket t) {
-        int index = (t.coach - 1) * seat_num + t.seat - 1;
-        return t.arrival | t.departure << 6 | t.route << 12 | index << 18;
+        return getHash(t.route, (t.coach - 1) * seat_num + t.seat - 1, t.departure, t.arrival);
+    }
+
+    private int getHash(int route, int index, int departure, int arrival) {
+        return arrival | departure << 6 | route << 12 | index << 18;
     }
 
     /* Generate a new Ticket object */
 
     private Ticket newTicket(String passenger, int route, int index, int departure, int arrival) {
-        long id = getIdLocal();
+        int id = issue(passenger, route, index, departure, arrival);
+        return makeTicket(id, passenger, route, index, departure, arrival);
+    }
+
+    /* Record a sold seat and return its TID */
+
+    private int issue(String passenger, int route, int index, int departure, int arrival) {
+        int id = (int) getIdLocal();
+        sold_hash.set(id, getHash(route, index, departure, arrival));
+        sold_name[id] = passenger;
+        addLive(passenger, route, index, departure, id);
+        return id;
+    }
+
+    /* Build the Ticket object of a seat without touching the sold records */
+
+    private Ticket makeTicket(long id, String passenger, int route, int index, int departure, int arrival) {
         int coach = index / seat_num + 1;
         int seat = index % seat_num + 1;
         Ticket t = new Ticket();
@@ -66,8 +549,6 @@ public class TicketingDS implements TicketingSystem {
         t.seat = seat;
         t.departure = departure;
         t.arrival = arrival;
-        sold_hash.set((int) id, getHash(t));
-        sold_name[(int) id] = passenger;
         return t;
     }
 
@@ -79,15 +560,137 @@ public class TicketingDS implements TicketingSystem {
         return src_bit & dst_bit;
     }
 
+    /* Initialize the adjoining seat index. Entries keep (seat index + 1) and 0 means empty */
+
+    private void initHint() {
+        arrive_hint = new AtomicIntegerArray[route_num];
+        depart_hint = new AtomicIntegerArray[route_num];
+        for (int i = 0; i < route_num; i++) {
+            arrive_hint[i] = new AtomicIntegerArray((station_num + 1) * HINT_WAYS);
+            depart_hint[i] = new AtomicIntegerArray((station_num + 1) * HINT_WAYS);
+        }
+    }
+
+    /* Initialize the announcement slots of wait-free buying */
+
+    @SuppressWarnings("unchecked")
+    private void initAnnounce() {
+        announce = new AtomicReferenceArray[route_num];
+        announce_phase = new AtomicLongArray(route_num);
+        announced = new AtomicIntegerArray(route_num);
+        for (int i = 0; i < route_num; i++)
+            announce[i] = new AtomicReferenceArray<>(ANNOUNCE_SIZE);
+    }
+
+    /* Initialize the admission limits. Routes admit as many buyers as there are threads */
+
+    private void initAdmission() {
+        admitted = new AtomicIntegerArray(route_num);
+        admit_limit = new AtomicIntegerArray(route_num);
+        admit_cap = new AtomicIntegerArray(route_num);
+        for (int i = 0; i < route_num; i++) {
+            admit_limit.set(i, thread_num);
+            admit_cap.set(i, thread_num);
+        }
+    }
+
+    /* Initialize the live TID index of the coaches in service */
+
+    @SuppressWarnings("unchecked")
+    private void initLive() {
+        live_tid = new AtomicReferenceArray[route_num];
+        route_cancelled = new AtomicIntegerArray(route_num);
+        for (int i = 0; i < route_num; i++) {
+            live_tid[i] = new AtomicReferenceArray<>(seat_record[i].length() / seat_num);
+            for (int c = 0; c < coach_num; c++)
+                live_tid[i].set(c, new AtomicIntegerArray(seat_num * (station_num - 1)));
+        }
+    }
+
+    /* Initialize the write stamps */
+
+    private void initStamp() {
+        write_stamp = new AtomicLongArray(route_num * LINEAR_STRIDE);
+        snapshot_view = new AtomicReferenceArray<>(route_num);
+    }
+
+    /* Initialize the subscription index of every route */
+
+    private void initInterest() {
+        interest = new InterestIndex[route_num];
+        for (int i = 0; i < route_num; i++)
+            interest[i] = new InterestIndex(station_num);
+    }
+
+    /* Initialize the waitlist of every route */
+
+    @SuppressWarnings("unchecked")
+    private void initWaitlist() {
+        waitlist = new ConcurrentLinkedQueue[route_num];
+        for (int i = 0; i < route_num; i++)
+            waitlist[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /* Initialize the elimination array of every route */
+
+    @SuppressWarnings("unchecked")
+    private void initElimination() {
+        elimination = new AtomicReferenceArray[route_num];
+        for (int i = 0; i < route_num; i++)
+            elimination[i] = new AtomicReferenceArray<>(ELIMINATION_SIZE);
+    }
+
+    /* Initialize the in-flight scan tables */
+
+    @SuppressWarnings("unchecked")
+    private void initFlight() {
+        flight = new AtomicReferenceArray[route_num];
+        for (int i = 0; i < route_num; i++)
+            flight[i] = new AtomicReferenceArray<>((station_num + 1) * (station_num + 1));
+    }
+
+    /* Initialize a candidate queue for every (route, departure) pair */
+
+    private void initCandidate() {
+        candidate = new CandidateQueue[route_num][station_num];
+        for (int i = 0; i < route_num; i++)
+            for (int j = 1; j < station_num; j++)
+                candidate[i][j] = new CandidateQueue(CANDIDATE_CAPACITY);
+    }
+
+    /* Initialize the contention statistics and combining structures */
+
+    @SuppressWarnings("unchecked")
+    private void initCombining() {
+        route_ops = new LongAdder[route_num];
+        cas_failure = new LongAdder[route_num];
+        combine_pass = new LongAdder[route_num];
+        combine_request = new LongAdder[route_num];
+        route_hot = new AtomicIntegerArray(route_num);
+        combine_lock = new AtomicIntegerArray(route_num);
+        publication = new AtomicReferenceArray[route_num];
+        for (int i = 0; i < route_num; i++) {
+            route_ops[i] = new LongAdder();
+            cas_failure[i] = new LongAdder();
+            combine_pass[i] = new LongAdder();
+            combine_request[i] = new LongAdder();
+            publication[i] = new AtomicReferenceArray<>(128);
+        }
+    }
+
     /* Initialize necessary structures */
 
     private void initDS() {
         if (station_num > Integer.SIZE)
             throw new IllegalArgumentException();
         record_size = coach_num * seat_num;
+        if (record_size > MAX_RECORD_SIZE)
+            throw new IllegalArgumentException();
         seat_record = new AtomicIntegerArray[route_num];
+        route_size = new AtomicIntegerArray(route_num);
         for (int i = 0; i < route_num; i++) {
-            int length = record_size;
+            int length = MAX_RECORD_SIZE / seat_num * seat_num;
+            route_size.set(i, record_size);
             seat_record[i] = new AtomicIntegerArray(length);
             for (int j = 0; j < length; j++)
                 seat_record[i].set(j, 0);
@@ -99,11 +702,26 @@ public class TicketingDS implements TicketingSystem {
             sold_name[i] = null;
             sold_hash.set(i, 0xffffffff);
         }
+        passengers = new PassengerIndex(max_tid);
 
         thread_tid = new long[128][8];
         for (int i = 0; i < 128; i++) {
             thread_tid[i][0] = 0;
         }
+
+        inquiry_parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        initCombining();
+        initHint();
+        initCandidate();
+        initStamp();
+        initFlight();
+        initInterest();
+        initWaitlist();
+        initElimination();
+        initLive();
+        initAnnounce();
+        initAdmission();
     }
 
     /* Default Constructor */
@@ -132,85 +750,1880 @@ public class TicketingDS implements TicketingSystem {
 
     public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
 
-        int interval = interval(departure, arrival);
-        AtomicIntegerArray route_record = seat_record[route - 1];
+        if (route_cancelled.get(route - 1) != 0) return null;
 
-        /* Select a random start to avoid competition */
+        if (wait_free) return checkCancel(buyWaitFree(passenger, route, departure, arrival));
 
-        int end = (passenger.hashCode() & 0x7fffffff) % record_size;
-        int index = end;
+        adaptRoute(route - 1);
 
-        do {
-            /* Keep searching until succeed */
-            while (true) {
-                int record = route_record.get(index);
-                /* Give up current seat */
-                if ((record & interval) != 0) break;
-                int new_record = record | interval;
-                boolean res = route_record.compareAndSet(index, record, new_record);
-                /* Another thread may try writing the same seat. Check again if CAS failed */
-                if (res)
-                    return newTicket(passenger, route, index, departure, arrival);
-            }
+        /* Hot routes hand the request over to the combiner */
 
-            index++;
-            if (index == record_size) index = 0;
+        if (route_hot.get(route - 1) != 0) {
+            Request request = new Request(passenger, departure, arrival, null);
+            if (combine(route, request)) return checkCancel(request.result);
+        }
 
-        } while (index != end);
+        return checkCancel(buyDirect(passenger, route, departure, arrival));
+    }
 
-        return null;
+    /* Buying under admission control. Return a BUSY result at once if the route already serves as many buyers
+       as it admits, so that overload is shed instead of piling up on the seat bitmap */
+
+    public BuyResult tryBuy(String passenger, int route, int departure, int arrival) {
+
+        int r = route - 1;
+        if (admitted.get(r) >= admit_limit.get(r)) {
+            shed_buy.increment();
+            return BuyResult.BUSY;
+        }
+
+        /* Check again after counting ourselves in, as others may have got in meanwhile */
+
+        if (admitted.incrementAndGet(r) > admit_limit.get(r)) {
+            admitted.decrementAndGet(r);
+            shed_buy.increment();
+            return BuyResult.BUSY;
+        }
+        Ticket ticket;
+        try {
+            ticket = buyTicket(passenger, route, departure, arrival);
+        } finally {
+            admitted.decrementAndGet(r);
+        }
+        return ticket == null ? BuyResult.SOLD_OUT : new BuyResult(BuyResult.Status.SOLD, ticket);
     }
 
-    /* Interface of Inquiry Remaining Tickets */
+    /* Set how many buyers tryBuy admits on a route at a time. With adaptive admission this is the upper bound */
 
-    public int inquiry(int route, int departure, int arrival) {
+    public void setAdmissionLimit(int route, int limit) {
+        admit_cap.set(route - 1, Math.max(1, limit));
+        admit_limit.set(route - 1, Math.max(1, limit));
+    }
+
+    public void setAdaptiveAdmission(boolean enable) {
+        adaptive_admission = enable;
+    }
+
+    /* Lock-free buying by CAS on the seat bitmap */
+
+    private Ticket buyDirect(String passenger, int route, int departure, int arrival) {
 
-        int cnt = 0;
         int interval = interval(departure, arrival);
-        AtomicIntegerArray route_record = seat_record[route - 1];
+        boolean best_fit = policy == AllocationPolicy.BEST_FIT;
 
-        /* Traverse all seats to count available seats */
+        /* Try the seats adjoining the interval before a full search */
 
-        for (int i = 0; i < record_size; i++) {
-            int record = route_record.get(i);
-            if ((record & interval) == 0) cnt++;
+        if (best_fit) {
+            int index = claimAdjoining(route, departure, arrival, interval);
+            if (index >= 0)
+                return newTicket(passenger, route, index, departure, arrival);
         }
 
-        return cnt;
-    }
+        /* Then the seats recently freed from our departure */
 
-    /* Interface of Refunding A Ticket */
+        int candidate_index = claimCandidate(route, departure, interval);
+        if (candidate_index >= 0) {
+            if (best_fit) addHint(route, candidate_index, departure, arrival);
+            return newTicket(passenger, route, candidate_index, departure, arrival);
+        }
 
-    public boolean refundTicket(Ticket ticket) {
+        /* Select a random start to avoid competition. After the first ELIMINATION_DELAY seats fail, the route
+           looks crowded, so advertise the request to concurrent refunds for the rest of the search */
 
-        int id = (int) ticket.tid;
+        int size = route_size.get(route - 1);
+        int start = (passenger.hashCode() & 0x7fffffff) % size;
+        Waiter offer = null;
+        int index;
 
-        /* Refunding an unsold ticket will fail */
+        if (policy == AllocationPolicy.THREAD_AFFINE) {
 
-        if (sold_name[id] == null) return false;
+            /* Search the home slice of the thread first, and then steal from the other slices */
 
-        /* Refunding a ticket with wrong passenger name will fail */
+            int coaches = size / seat_num;
+            int slices = Math.min(coaches, thread_num);
+            int home = (int) (Thread.currentThread().getId() % slices);
+            int lo = home * coaches / slices * seat_num;
+            int hi = (home + 1) * coaches / slices * seat_num;
+            int mid = lo + start % (hi - lo);
+            int delay = Math.min(ELIMINATION_DELAY, hi - mid);
+            index = probe(route, interval, mid, delay, null);
+            if (index == -1) {
+                offer = advertise(passenger, route, departure, arrival, interval);
+                index = probe(route, interval, mid + delay, hi - mid - delay, offer);
+            }
+            if (index == -1) index = probe(route, interval, lo, mid - lo, offer);
+            if (index == -1) {
+                index = probe(route, interval, hi % size, size - (hi - lo), offer);
+                if (index >= 0) affine_steal.increment();
+            }
+        } else {
+            int delay = Math.min(ELIMINATION_DELAY, size);
+            index = probe(route, interval, start, delay, null);
+            if (index == -1) {
+                offer = advertise(passenger, route, departure, arrival, interval);
+                index = probe(route, interval, (start + delay) % size, size - delay, offer);
+            }
+        }
 
-        if (!Objects.equals(ticket.passenger, sold_name[id]))
-            return false;
+        /* A refund may still hand a seat over before the offer is withdrawn. The seat is ours as well then */
 
-        /* Refunding a ticket with wrong information (except name) will fail */
+        if (index == -1 && offer != null) index = withdraw(offer);
+        if (offer != null) retire(route, offer);
 
-        int t_hash = getHash(ticket);
-        if (!sold_hash.compareAndSet(id, t_hash, 0xffffffff))
-            return false;
+        if (index >= 0) {
+            if (best_fit) addHint(route, index, departure, arrival);
+            return newTicket(passenger, route, index, departure, arrival);
+        }
 
-        int interval = ~interval(ticket.departure, ticket.arrival);
-        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
-        AtomicIntegerArray record = seat_record[ticket.route - 1];
+        failed_buy.increment();
+        return null;
+    }
 
-        /* Reset the sold bitmap */
+    /* Publish a buying request in a free slot of the elimination array of the route, or return null if full */
 
-        while (true) {
-            int old_record = record.get(index);
-            int new_record = old_record & interval;
-            if (record.compareAndSet(index, old_record, new_record)) break;
+    private Waiter advertise(String passenger, int route, int departure, int arrival, int interval) {
+        AtomicReferenceArray<Waiter> slots = elimination[route - 1];
+        Waiter offer = new Waiter(passenger, departure, arrival, interval, false);
+        int first = ThreadLocalRandom.current().nextInt(ELIMINATION_SIZE);
+        for (int k = 0; k < ELIMINATION_SIZE; k++) {
+            int slot = (first + k) & (ELIMINATION_SIZE - 1);
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, offer)) {
+                offer.slot = slot;
+                return offer;
+            }
         }
+        return null;
+    }
+
+    /* Cancel an offer before claiming a seat by ourselves. Return the seat handed over if a refund was faster,
+       or -1 */
+
+    private int withdraw(Waiter offer) {
+        offer.decision.compareAndSet(null, Waiter.CANCELLED);
+        Object decision = offer.decision.get();
+        return decision == Waiter.CANCELLED ? -1 : ((HandOver) decision).index;
+    }
+
+    private void retire(int route, Waiter offer) {
+        elimination[route - 1].compareAndSet(offer.slot, offer, null);
+    }
+
+    /* Claim the first free seat among count seats from start, wrapping at the end, or return -1. If an offer
+       is given, it is withdrawn before the first CAS, and the seat a refund handed over is returned if any */
+
+    private int probe(int route, int interval, int start, int count, Waiter offer) {
+
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int size = route_size.get(route - 1);
+        int index = start;
+
+        for (int k = 0; k < count; k++) {
+            /* Keep searching until succeed */
+            while (true) {
+                int record = route_record.get(index);
+                /* Give up current seat */
+                if ((record & interval) != 0) {
+                    if (helpClaim(route, index, record, interval)) continue;
+                    break;
+                }
+                if (offer != null) {
+                    int handed = withdraw(offer);
+                    if (handed >= 0) return handed;
+                    offer = null;
+                }
+                int new_record = record | interval;
+                boolean res = casSeat(route, index, record, new_record);
+                /* Another thread may try writing the same seat. Check again if CAS failed */
+                if (res) return index;
+                cas_failure[route - 1].increment();
+            }
+
+            index++;
+            if (index == size) index = 0;
+        }
+
+        return -1;
+    }
+
+    /* Claim a free seat whose sold intervals touch the given one, or return -1 */
+
+    private int claimAdjoining(int route, int departure, int arrival, int interval) {
+
+        AtomicIntegerArray route_record = seat_record[route - 1];
+
+        /* Seats with a ticket arriving at our departure, or departing at our arrival */
+
+        int adjoin = (departure > 1 ? 1 << (departure - 2) : 0) | (1 << (arrival - 1));
+
+        for (int k = 0; k < 2 * HINT_WAYS; k++) {
+            int hint = k < HINT_WAYS ? arrive_hint[route - 1].get(departure * HINT_WAYS + k)
+                                     : depart_hint[route - 1].get(arrival * HINT_WAYS + k - HINT_WAYS);
+            if (hint == 0) continue;
+            int index = hint - 1;
+
+            /* Hints may be stale, so check both the gap and the adjacency before claiming */
+
+            while (true) {
+                int record = route_record.get(index);
+                if ((record & interval) != 0 && helpClaim(route, index, record, interval)) continue;
+                if ((record & interval) != 0 || (record & adjoin) == 0) break;
+                if (casSeat(route, index, record, record | interval)) {
+                    addHint(route, index, departure, arrival);
+                    return index;
+                }
+                cas_failure[route - 1].increment();
+            }
+        }
+
+        return -1;
+    }
+
+    /* Claim a seat taken from the candidate queue of our departure, or return -1 */
+
+    private int claimCandidate(int route, int departure, int interval) {
+
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        CandidateQueue queue = candidate[route - 1][departure];
+        int start_bit = 1 << (departure - 1);
+        int keep = -1;
+        int claimed = -1;
+
+        for (int k = 0; k < CANDIDATE_TRIES && claimed < 0; k++) {
+            int index = queue.pop();
+            if (index < 0) break;
+            while (true) {
+                int record = route_record.get(index);
+                if ((record & interval) != 0 && helpClaim(route, index, record, interval)) continue;
+                if ((record & interval) != 0) {
+                    /* Too short for us but still free from the departure, keep it for shorter trips */
+                    if ((record & start_bit) == 0) keep = index;
+                    break;
+                }
+                if (casSeat(route, index, record, record | interval)) {
+                    claimed = index;
+                    break;
+                }
+                cas_failure[route - 1].increment();
+            }
+        }
+
+        if (keep >= 0) queue.push(keep);
+        return claimed;
+    }
+
+    /* Refill the candidate queues of every route from a full scan. Runs on the maintainer thread */
+
+    private void sweepCandidate() {
+
+        int[] pushed = new int[station_num];
+
+        for (int r = 0; r < route_num; r++) {
+            AtomicIntegerArray route_record = seat_record[r];
+            int size = route_size.get(r);
+            Arrays.fill(pushed, 0);
+            int full = 1;
+
+            /* Stop as soon as every departure has got a queue worth of seats */
+
+            for (int i = 0; i < size && full < station_num; i++) {
+                int record = route_record.get(i);
+                for (int d = 1; d < station_num; d++) {
+                    if ((record & (1 << (d - 1))) != 0 || pushed[d] == CANDIDATE_CAPACITY) continue;
+                    candidate[r][d].push(i);
+                    if (++pushed[d] == CANDIDATE_CAPACITY) full++;
+                }
+            }
+        }
+    }
+
+    /* Start refilling the candidate queues in background every period_ms milliseconds */
+
+    public synchronized void startSweeper(long period_ms) {
+        stopSweeper();
+        sweeper = getMaintainer().scheduleWithFixedDelay(this::sweepCandidate, 0, period_ms, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSweeper() {
+        if (sweeper != null) sweeper.cancel(false);
+        sweeper = null;
+    }
+
+    /* Create the maintainer thread on first use */
+
+    private synchronized ScheduledExecutorService getMaintainer() {
+        if (maintainer == null) {
+            maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ticketing-maintainer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return maintainer;
+    }
+
+    /* Count the seats free for every interval of every route and publish the result */
+
+    private void publishAvailability() {
+
+        long time = System.nanoTime();
+        int width = station_num + 1;
+        int[][] count = new int[route_num][width * width];
+
+        for (int r = 0; r < route_num; r++) {
+            AtomicIntegerArray route_record = seat_record[r];
+            int size = route_size.get(r);
+            int[] route_count = count[r];
+
+            /* A seat free from d for run segments serves every arrival up to d + run */
+
+            for (int i = 0; i < size; i++) {
+                int record = route_record.get(i);
+                if (record < 0) record = settle(r + 1, i);
+                for (int d = 1; d < station_num; d++) {
+                    int run = Integer.numberOfTrailingZeros(record >>> (d - 1));
+                    route_count[d * width + Math.min(station_num, d + run)]++;
+                }
+            }
+
+            /* Accumulate so that each arrival also counts the seats free beyond it */
+
+            for (int d = 1; d < station_num; d++) {
+                for (int a = station_num - 1; a > d; a--)
+                    route_count[d * width + a] += route_count[d * width + a + 1];
+                route_count[d * width + d] = 0;
+            }
+        }
+
+        availability = new Availability(time, count);
+    }
+
+    /* Start publishing the availability of all routes every period_ms milliseconds */
+
+    public synchronized void startPublisher(long period_ms) {
+        stopPublisher();
+        publisher = getMaintainer().scheduleAtFixedRate(this::publishAvailability, 0, period_ms, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPublisher() {
+        if (publisher != null) publisher.cancel(false);
+        publisher = null;
+    }
+
+    /* Remember a seat as adjoining the intervals that start at our arrival or end at our departure */
+
+    private void addHint(int route, int index, int departure, int arrival) {
+        int way = index & (HINT_WAYS - 1);
+        arrive_hint[route - 1].lazySet(arrival * HINT_WAYS + way, index + 1);
+        depart_hint[route - 1].lazySet(departure * HINT_WAYS + way, index + 1);
+    }
+
+    /* Choose the allocation policy of buyTicket */
+
+    public void setAllocationPolicy(AllocationPolicy policy) {
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+    /* Number of buying requests that failed, which all scanned a whole route */
+
+    public long getFailedBuying() {
+        return failed_buy.sum();
+    }
+
+    /* Number of tryBuy requests turned away with BUSY */
+
+    public long getShedBuying() {
+        return shed_buy.sum();
+    }
+
+    /* Number of thread-affine buying requests served by stealing from another slice */
+
+    public long getStolenBuying() {
+        return affine_steal.sum();
+    }
+
+    /* Attach n empty coaches to the end of a route while sales go on. Sold seats keep their index, so their
+       tickets stay valid. Return false if the seat index of the route would outgrow getHash */
+
+    public boolean addCoaches(int route, int n) {
+
+        int capacity = seat_record[route - 1].length();
+        int size;
+        int grown;
+
+        while (true) {
+            size = route_size.get(route - 1);
+            grown = size + n * seat_num;
+            if (n < 0 || grown > capacity) return false;
+            for (int c = size / seat_num; c < grown / seat_num; c++)
+                live_tid[route - 1].compareAndSet(c, null, new AtomicIntegerArray(seat_num * (station_num - 1)));
+            if (!linear_inquiry) {
+                if (route_size.compareAndSet(route - 1, size, grown)) break;
+                continue;
+            }
+            int base = (route - 1) * LINEAR_STRIDE;
+            beginWrite(base);
+            boolean res = route_size.compareAndSet(route - 1, size, grown);
+            write_stamp.getAndIncrement(base + 1);
+            if (res) break;
+        }
+
+        /* Serve the waitlist from the new seats, and wake up the subscribers of the route */
+
+        for (int index = size; index < grown && !waitlist[route - 1].isEmpty(); index++)
+            releaseSeat(route, index, 0, false);
+        interest[route - 1].notify(interval(1, station_num), 0);
+        return true;
+    }
+
+    /* Number of sold (seat, segment) pairs of a route. Undecided claims are not counted, as readers see them */
+
+    public int getSoldSegments(int route) {
+        int cnt = 0;
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int size = route_size.get(route - 1);
+        for (int i = 0; i < size; i++) {
+            int record = route_record.get(i);
+            cnt += Integer.bitCount(record < 0 ? settle(route, i) : record);
+        }
+        return cnt;
+    }
+
+    /* Interface of Inquiry Remaining Tickets */
+
+    public int inquiry(int route, int departure, int arrival) {
+        if (coalesce_inquiry)
+            return inquiryCoalesced(route, departure, arrival);
+        return count(route, departure, arrival);
+    }
+
+    /* Count the seats free for an interval by a full scan */
+
+    private int count(int route, int departure, int arrival) {
+
+        int cnt = 0;
+        int interval = interval(departure, arrival);
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int size = route_size.get(route - 1);
+
+        /* Traverse all seats to count available seats */
+
+        for (int i = 0; i < size; i++) {
+            int record = route_record.get(i);
+            if ((record & interval) == 0 || record < 0 && (settle(route, i) & interval) == 0) cnt++;
+        }
+
+        return cnt;
+    }
+
+    /* The bitmap of a seat as readers see it, without the stations of an undecided or failed claim */
+
+    private int settle(int route, int index) {
+        long key = key(route, index);
+        while (true) {
+
+            /* The same claim found in the map before and after reading the seat owns its PENDING bit */
+
+            Claim claim = pending.get(key);
+            int record = seat_record[route - 1].get(index);
+            if (record >= 0) return record;
+            if (claim != null && pending.get(key) == claim) {
+                record &= ~PENDING;
+                if (claim.owner.status(claim) == Pending.SUCCEEDED) return record;
+                return record & ~claim.interval;
+            }
+        }
+    }
+
+    private static long key(int route, int index) {
+        return (long) route << 32 | index;
+    }
+
+    /* Replace the bitmap expect of a seat by record with a claim on it, the map entry before the bit. Return
+       false, leaving nothing behind, if the seat has changed or holds another claim */
+
+    private boolean install(Claim claim, int expect, int record) {
+        if (pending.putIfAbsent(key(claim.route, claim.index), claim) != null) return false;
+        if (casSeat(claim.route, claim.index, expect, record | claim.interval | PENDING)) return true;
+
+        /* Mark it cleared and drop the pin of the installer at once */
+
+        if (claim.pins.addAndGet(-1) == 1) pending.remove(key(claim.route, claim.index), claim);
+        return false;
+    }
+
+    /* Keep a claim in the map, or return false if it is cleared already */
+
+    private boolean pin(Claim claim) {
+        while (true) {
+            int pins = claim.pins.get();
+            if ((pins & 1) != 0) return false;
+            if (claim.pins.compareAndSet(pins, pins + 2)) return true;
+        }
+    }
+
+    private void unpin(Claim claim) {
+        if (claim.pins.addAndGet(-2) == 1) pending.remove(key(claim.route, claim.index), claim);
+    }
+
+    /* Clear the PENDING bit of a pinned claim whose owner is decided, and its stations too unless the owner
+       succeeded. The pin of the installer goes with the bit. Return the bitmap left */
+
+    private int clear(Claim claim) {
+        boolean success = claim.owner.status(claim) == Pending.SUCCEEDED;
+        AtomicIntegerArray route_record = seat_record[claim.route - 1];
+        while (true) {
+            int old_record = route_record.get(claim.index);
+
+            /* Cleared by another thread. No other claim can set the bit while we hold the pin */
+
+            if (old_record >= 0) return old_record;
+            int new_record = old_record & ~PENDING & (success ? ~0 : ~claim.interval);
+            if (casSeat(claim.route, claim.index, old_record, new_record)) {
+                claim.pins.addAndGet(-1);
+                if (!success) afterRelease(claim.route, claim.index, claim.interval, new_record);
+                return new_record;
+            }
+            cas_failure[claim.route - 1].increment();
+        }
+    }
+
+    /* Settle a claim once its owner is decided, unless a helper has done it. Return the bitmap left */
+
+    private int settleClaim(Claim claim) {
+        if (!pin(claim)) return seat_record[claim.route - 1].get(claim.index);
+        int record = clear(claim);
+        unpin(claim);
+        return record;
+    }
+
+    /* Decide and clear the claim on a seat, if any. The owner is only decided once its bit is on the seat */
+
+    private void resolve(int route, int index) {
+        Claim claim = pending.get(key(route, index));
+        if (claim == null || !pin(claim)) return;
+        if (seat_record[route - 1].get(index) < 0) {
+            if (claim.owner.status(claim) == Pending.UNDECIDED) claim.owner.decide(claim);
+            clear(claim);
+        }
+        unpin(claim);
+    }
+
+    /* A writer found the stations of interval taken on a seat read as record. If only an undecided claim takes
+       them as readers see the seat, decide and clear it and return true, so that the writer reads the seat
+       again instead of skipping it */
+
+    private boolean helpClaim(int route, int index, int record, int interval) {
+        if (record >= 0 || (settle(route, index) & interval) != 0) return false;
+        resolve(route, index);
+        return true;
+    }
+
+    /* Hold a seat for ttl_ms without selling it. Return the hold id, or -1 if no seat is free */
+
+    public long holdTicket(String passenger, int route, int departure, int arrival, long ttl_ms) {
+
+        if (route_cancelled.get(route - 1) != 0) return -1;
+
+        int interval = interval(departure, arrival);
+        int index = claimCandidate(route, departure, interval);
+        if (index < 0) {
+            int size = route_size.get(route - 1);
+            index = probe(route, interval, (passenger.hashCode() & 0x7fffffff) % size, size, null);
+        }
+        if (index < 0) return -1;
+
+        Hold hold = new Hold(hold_id.getAndIncrement(), passenger, route, index, departure, arrival);
+        holds.put(hold.id, hold);
+        getHoldWheel().schedule(hold, TimeUnit.MILLISECONDS.toNanos(ttl_ms));
+        return hold.id;
+    }
+
+    /* Turn a hold into a sold ticket. Return null if the hold is unknown, released or expired */
+
+    public Ticket confirmHold(long id) {
+        Hold hold = holds.get(id);
+        if (hold == null || !hold.state.compareAndSet(Hold.HELD, Hold.CONFIRMED)) return null;
+        holds.remove(id);
+        return checkCancel(newTicket(hold.passenger, hold.route, hold.index, hold.departure, hold.arrival));
+    }
+
+    /* Give a held seat back before it expires */
+
+    public boolean releaseHold(long id) {
+        Hold hold = holds.get(id);
+        if (hold == null || !hold.state.compareAndSet(Hold.HELD, Hold.RELEASED)) return false;
+        holds.remove(id);
+        releaseSeat(hold.route, hold.index, interval(hold.departure, hold.arrival), false);
+        return true;
+    }
+
+    /* Create the timing wheel and its ticker on the maintainer thread on first use */
+
+    private TimingWheel getHoldWheel() {
+        TimingWheel wheel = hold_wheel;
+        if (wheel != null) return wheel;
+        synchronized (this) {
+            if (hold_wheel == null) {
+                wheel = new TimingWheel(WHEEL_SIZE, TimeUnit.MILLISECONDS.toNanos(WHEEL_TICK_MS));
+                hold_ticker = getMaintainer().scheduleAtFixedRate(
+                        wheel::advance, WHEEL_TICK_MS, WHEEL_TICK_MS, TimeUnit.MILLISECONDS);
+                hold_wheel = wheel;
+            }
+            return hold_wheel;
+        }
+    }
+
+    /* Buy the legs {route, departure, arrival} of an itinerary all or nothing. Return the tickets in the order
+       of the legs, or null if some leg has no seat, in which case no seat is taken */
+
+    public Ticket[] buyItinerary(String passenger, int[][] legs) {
+
+        int start = passenger.hashCode() & 0x7fffffff;
+
+        while (true) {
+            Itinerary itinerary = new Itinerary(legs.length);
+            for (int i = 0; i < legs.length; i++) {
+                if (route_cancelled.get(legs[i][0] - 1) != 0) return null;
+                itinerary.route[i] = legs[i][0];
+                itinerary.interval[i] = interval(legs[i][1], legs[i][2]);
+            }
+
+            /* Claim a seat for every leg. Buyers cannot take the stations of a claimed leg meanwhile unless they
+               decide the itinerary first, so stop as soon as it is decided */
+
+            int claimed = 0;
+            boolean sold_out = false;
+            while (claimed < legs.length && itinerary.status() == Pending.UNDECIDED) {
+                if (!reserveLeg(itinerary, claimed, start)) {
+                    sold_out = true;
+                    break;
+                }
+                itinerary.claimed = ++claimed;
+            }
+
+            itinerary.decide(claimed == legs.length ? Pending.SUCCEEDED : Pending.FAILED);
+            boolean success = itinerary.status() == Pending.SUCCEEDED;
+
+            for (int i = 0; i < claimed; i++)
+                settleClaim(itinerary.claim[i]);
+
+            if (sold_out) {
+                failed_buy.increment();
+                return null;
+            }
+
+            /* Failed by a helper before all legs were claimed. Start over */
+
+            if (!success) continue;
+
+            Ticket[] tickets = new Ticket[legs.length];
+            boolean cancelled = false;
+            for (int i = 0; i < legs.length; i++) {
+                tickets[i] = newTicket(passenger, legs[i][0], itinerary.claim[i].index, legs[i][1], legs[i][2]);
+                cancelled |= route_cancelled.get(legs[i][0] - 1) != 0;
+            }
+
+            /* A route cancelled meanwhile voids the whole itinerary */
+
+            if (cancelled) {
+                for (Ticket t : tickets)
+                    if (checkRefund(t)) resetSeat(t);
+                return null;
+            }
+            return tickets;
+        }
+    }
+
+    /* Claim a seat for a leg by setting its stations and the PENDING bit in one CAS. Seats holding a claim
+       already are skipped. Itineraries leave deciding claims to the other buyers, as two of them deciding
+       each other could fail each other in turn forever */
+
+    private boolean reserveLeg(Itinerary itinerary, int leg, int start) {
+
+        int route = itinerary.route[leg];
+        int interval = itinerary.interval[leg];
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int size = route_size.get(route - 1);
+        int index = start % size;
+
+        for (int i = 0; i < size; i++) {
+            while (true) {
+                int record = route_record.get(index);
+                if ((record & (interval | PENDING)) != 0) break;
+                Claim claim = new Claim(itinerary, route, index, interval);
+                if (install(claim, record, record)) {
+                    itinerary.claim[leg] = claim;
+                    return true;
+                }
+                cas_failure[route - 1].increment();
+            }
+
+            index++;
+            if (index == size) index = 0;
+        }
+
+        return false;
+    }
+
+    /* Subscribe to an interval instead of polling. The future completes once a refund frees a seat for the
+       interval. The seat is not held, so a buy may still fail. Cancel the future to unsubscribe */
+
+    public CompletableFuture<Void> subscribe(int route, int departure, int arrival) {
+        CompletableFuture<Void> future = interest[route - 1].add(interval(departure, arrival));
+
+        /* A seat may have been freed before we were visible to refunds. Check once more now that we are */
+
+        if (hasAvailability(route, departure, arrival)) future.complete(null);
+        return future;
+    }
+
+    /* Whether any seat is free for the interval */
+
+    public boolean hasAvailability(int route, int departure, int arrival) {
+        return atLeast(route, departure, arrival, 1);
+    }
+
+    /* Whether at least k seats are free for the interval. The scan stops as soon as the answer is known,
+       and starts from a random offset so that concurrent callers spread over the coaches */
+
+    public boolean atLeast(int route, int departure, int arrival, int k) {
+
+        int size = route_size.get(route - 1);
+        if (k <= 0) return true;
+        if (k > size) return false;
+
+        int interval = interval(departure, arrival);
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int index = ThreadLocalRandom.current().nextInt(size);
+        int cnt = 0;
+
+        for (int i = 0; i < size; i++) {
+            int record = route_record.get(index);
+            if (((record & interval) == 0 || record < 0 && (settle(route, index) & interval) == 0) && ++cnt == k)
+                return true;
+
+            /* Give up once the remaining seats cannot make up the difference */
+
+            if (k - cnt > size - i - 1) return false;
+
+            index++;
+            if (index == size) index = 0;
+        }
+
+        return false;
+    }
+
+    /* Estimate the seats free for an interval by sampling every coach. The sample of each coach doubles until
+       the 95% confidence bound is within max_relative_error of the estimate. Near-zero estimates and samples
+       that grow past half the seats fall back to an exact scan */
+
+    public Estimate inquiryEstimate(int route, int departure, int arrival, double max_relative_error) {
+
+        int interval = interval(departure, arrival);
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int coaches = route_size.get(route - 1) / seat_num;
+        int offset = ThreadLocalRandom.current().nextInt(seat_num);
+
+        for (int n = Math.min(ESTIMATE_SAMPLE, seat_num); 2 * n <= seat_num; n <<= 1) {
+
+            double total = 0;
+            double variance = 0;
+
+            /* Systematic sample of n seats per coach from a random offset */
+
+            for (int c = 0; c < coaches; c++) {
+                int base = c * seat_num;
+                int free = 0;
+                for (int j = 0; j < n; j++) {
+                    int seat = (offset + (int) ((long) j * seat_num / n)) % seat_num;
+                    int record = route_record.get(base + seat);
+                    if ((record & interval) == 0 || record < 0 && (settle(route, base + seat) & interval) == 0)
+                        free++;
+                }
+                total += (double) free * seat_num / n;
+
+                /* Smoothed proportion, so that an all-free or all-sold sample still has some variance */
+
+                double p = (free + 0.5) / (n + 1);
+                variance += (double) seat_num * seat_num * p * (1 - p) / n * (1 - (double) n / seat_num);
+            }
+
+            int count = (int) Math.round(total);
+            int bound = (int) Math.ceil(1.96 * Math.sqrt(variance));
+
+            if (count <= bound) break;
+            if (bound <= max_relative_error * count)
+                return new Estimate(count, bound, false);
+        }
+
+        return new Estimate(count(route, departure, arrival), 0, true);
+    }
+
+    /* Inquiry that shares one scan among concurrent callers asking for the same interval. A caller only joins
+       a scan that has not started yet, so the shared result is valid for every joiner */
+
+    private int inquiryCoalesced(int route, int departure, int arrival) {
+
+        AtomicReferenceArray<Flight> table = flight[route - 1];
+        int key = departure * (station_num + 1) + arrival;
+
+        while (true) {
+            Flight running = table.get(key);
+
+            /* Nobody is scanning, start a new flight */
+
+            if (running == null) {
+                Flight mine = new Flight();
+                if (table.compareAndSet(key, null, mine))
+                    return lead(table, key, mine, route, departure, arrival);
+                continue;
+            }
+
+            /* The running scan may have started before we arrived, so line up for the next one */
+
+            Flight next = running.next.get();
+            if (next == null) {
+                Flight mine = new Flight();
+                if (running.next.compareAndSet(null, mine)) {
+                    running.result.join();
+                    table.compareAndSet(key, running, mine);
+                    return lead(table, key, mine, route, departure, arrival);
+                }
+                continue;
+            }
+
+            /* Join the next flight unless its scan has already started */
+
+            int joiner = next.joiner.get();
+            if (joiner >= 0 && next.joiner.compareAndSet(joiner, joiner + 1))
+                return next.result.join();
+        }
+    }
+
+    /* Close a flight to joiners, scan for all of them and retire the flight */
+
+    private int lead(AtomicReferenceArray<Flight> table, int key, Flight flight, int route, int departure, int arrival) {
+        flight.joiner.set(-1);
+        int cnt;
+        try {
+            cnt = count(route, departure, arrival);
+        } catch (RuntimeException | Error e) {
+            flight.result.completeExceptionally(e);
+            table.compareAndSet(key, flight, null);
+            throw e;
+        }
+        flight.result.complete(cnt);
+        table.compareAndSet(key, flight, null);
+        return cnt;
+    }
+
+    /* Share scans among identical concurrent inquiries */
+
+    public void setInquiryCoalescing(boolean enable) {
+        coalesce_inquiry = enable;
+    }
+
+    /* Inquiry the same interval on several routes. Routes are scanned in parallel on the inquiry pool */
+
+    public int[] inquiryAcross(int[] routes, int departure, int arrival) {
+
+        int[] cnt = new int[routes.length];
+
+        /* A single route or a single worker is not worth a fork */
+
+        if (routes.length <= 1 || inquiry_parallelism <= 1) {
+            for (int i = 0; i < routes.length; i++)
+                cnt[i] = inquiry(routes[i], departure, arrival);
+            return cnt;
+        }
+
+        /* The pool may be retired by a concurrent resize. Simply retry on the new one */
+
+        while (true) {
+            try {
+                getInquiryPool().invoke(new InquiryTask(routes, departure, arrival, cnt, 0, routes.length));
+                return cnt;
+            } catch (RejectedExecutionException e) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /* Cap the number of workers used by inquiryAcross. The old pool retires after its running tasks */
+
+    public synchronized void setInquiryParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException();
+        inquiry_parallelism = parallelism;
+        ForkJoinPool pool = inquiry_pool;
+        inquiry_pool = null;
+        if (pool != null) pool.shutdown();
+    }
+
+    /* Create the pool on first use, so that plain booking never starts extra threads */
+
+    private ForkJoinPool getInquiryPool() {
+        ForkJoinPool pool = inquiry_pool;
+        if (pool != null) return pool;
+        synchronized (this) {
+            if (inquiry_pool == null)
+                inquiry_pool = new ForkJoinPool(inquiry_parallelism);
+            return inquiry_pool;
+        }
+    }
+
+    /* Split the route list in halves until a single route is left to scan */
+
+    private class InquiryTask extends RecursiveAction {
+
+        final int[] routes;
+        final int departure;
+        final int arrival;
+        final int[] cnt;
+        final int lo;
+        final int hi;
+
+        InquiryTask(int[] routes, int departure, int arrival, int[] cnt, int lo, int hi) {
+            this.routes = routes;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.cnt = cnt;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                cnt[lo] = inquiry(routes[lo], departure, arrival);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new InquiryTask(routes, departure, arrival, cnt, lo, mid),
+                      new InquiryTask(routes, departure, arrival, cnt, mid, hi));
+        }
+    }
+
+    /* Inquiry served from the published availability if it is at most max_staleness_ms old, or by a scan */
+
+    public int inquiryStale(int route, int departure, int arrival, long max_staleness_ms) {
+        Availability snapshot = availability;
+        if (snapshot != null && System.nanoTime() - snapshot.time <= TimeUnit.MILLISECONDS.toNanos(max_staleness_ms))
+            return snapshot.count[route - 1][departure * (station_num + 1) + arrival];
+        return inquiry(route, departure, arrival);
+    }
+
+    /* Inquiry that is linearizable. The scan is validated against the write stamps of the route and retried
+       on conflict with exponential backoff. Under writes that never pause, it falls back to a snapshot after
+       LINEAR_RETRY scans, so that it always terminates */
+
+    public int inquiryLinearizable(int route, int departure, int arrival) {
+
+        if (!linear_inquiry)
+            throw new IllegalStateException("linearizable inquiry is not enabled");
+
+        int base = (route - 1) * LINEAR_STRIDE;
+
+        int backoff = 1;
+
+        for (int k = 0; k < LINEAR_RETRY; k++) {
+
+            /* No write may be in flight when the scan starts. Read finished before started */
+
+            long finished = write_stamp.get(base + 1);
+            long started = write_stamp.get(base);
+            if (started == finished) {
+                int cnt = count(route, departure, arrival);
+
+                /* And none may have started during the scan */
+
+                if (write_stamp.get(base) == started) return cnt;
+            }
+
+            /* Let the writers through before trying again */
+
+            for (int i = 0; i < backoff; i++)
+                Thread.onSpinWait();
+            if (backoff < LINEAR_BACKOFF) backoff <<= 1;
+        }
+
+        int interval = interval(departure, arrival);
+        int cnt = 0;
+        for (int record : snapshot(route).record)
+            if ((record & interval) == 0) cnt++;
+        return cnt;
+    }
+
+    /* A view of the route valid at some point of this call. Scan until a scan validates, or until a view
+       published by another caller was started after us. We count as wanting a snapshot all along, so that
+       every writer overlapping our scans takes one first */
+
+    private View snapshot(int route) {
+        int base = (route - 1) * LINEAR_STRIDE;
+        write_stamp.getAndIncrement(base + 2);
+        try {
+            long since = write_stamp.get(base);
+            while (true) {
+                View view = scanView(route, base);
+                if (view != null) {
+                    publishView(route, view);
+                    return view;
+                }
+                View latest = snapshot_view.get(route - 1);
+                if (latest != null && latest.stamp >= since) return latest;
+                Thread.onSpinWait();
+            }
+        } finally {
+            write_stamp.getAndDecrement(base + 2);
+        }
+    }
+
+    /* Copy the bitmaps of a route by a scan validated like inquiryLinearizable, or return null */
+
+    private View scanView(int route, int base) {
+        long finished = write_stamp.get(base + 1);
+        long started = write_stamp.get(base);
+        if (started != finished) return null;
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int[] record = new int[route_size.get(route - 1)];
+        for (int i = 0; i < record.length; i++) {
+            int r = route_record.get(i);
+            record[i] = r < 0 ? settle(route, i) : r;
+        }
+        return write_stamp.get(base) == started ? new View(started, record) : null;
+    }
+
+    /* Keep the most recent view of a route */
+
+    private void publishView(int route, View view) {
+        while (true) {
+            View latest = snapshot_view.get(route - 1);
+            if (latest != null && latest.stamp >= view.stamp) return;
+            if (snapshot_view.compareAndSet(route - 1, latest, view)) return;
+        }
+    }
+
+    /* Take a snapshot for the readers waiting on a route before writing it */
+
+    private void serveSnapshot(int base) {
+        if (write_stamp.get(base + 2) != 0) snapshot(base / LINEAR_STRIDE + 1);
+    }
+
+    /* Enable the write stamps needed by inquiryLinearizable. Must be set before the system is shared */
+
+    public void setLinearizableInquiry(boolean enable) {
+        linear_inquiry = enable;
+    }
+
+    /* All writes to seat bitmaps go through casSeat, setSeat or addSeat, which stamp them when linearizable
+       inquiry is enabled */
+
+    private boolean casSeat(int route, int index, int expect, int update) {
+        if (!linear_inquiry)
+            return seat_record[route - 1].compareAndSet(index, expect, update);
+        int base = (route - 1) * LINEAR_STRIDE;
+        beginWrite(base);
+        boolean res = seat_record[route - 1].compareAndSet(index, expect, update);
+        write_stamp.getAndIncrement(base + 1);
+        return res;
+    }
+
+    private void setSeat(int route, int index, int update) {
+        if (!linear_inquiry) {
+            seat_record[route - 1].lazySet(index, update);
+            return;
+        }
+        int base = (route - 1) * LINEAR_STRIDE;
+        beginWrite(base);
+        seat_record[route - 1].lazySet(index, update);
+        write_stamp.getAndIncrement(base + 1);
+    }
+
+    /* Add delta to a seat bitmap and return the new bitmap. Only for clearing bits owned by the caller */
+
+    private int addSeat(int route, int index, int delta) {
+        if (!linear_inquiry)
+            return seat_record[route - 1].addAndGet(index, delta);
+        int base = (route - 1) * LINEAR_STRIDE;
+        beginWrite(base);
+        int res = seat_record[route - 1].addAndGet(index, delta);
+        write_stamp.getAndIncrement(base + 1);
+        return res;
+    }
+
+    /* Count a started write. Writers never wait, readers retry around them */
+
+    private void beginWrite(int base) {
+        serveSnapshot(base);
+        write_stamp.getAndIncrement(base);
+    }
+
+    /* Interface of Refunding A Ticket */
+
+    public boolean refundTicket(Ticket ticket) {
+
+        if (!checkRefund(ticket)) return false;
+
+        if (wait_free) {
+            releaseWaitFree(ticket);
+            return true;
+        }
+
+        /* Hot routes hand the bitmap reset over to the combiner */
+
+        if (route_hot.get(ticket.route - 1) != 0) {
+            Request request = new Request(ticket.passenger, ticket.departure, ticket.arrival, ticket);
+            if (combine(ticket.route, request)) return true;
+        }
+
+        resetSeat(ticket);
+        return true;
+    }
+
+    /* Switch buyTicket and refundTicket to their wait-free variants. Must be set before the system is shared */
+
+    public void setWaitFree(boolean enable) {
+        wait_free = enable;
+    }
+
+    /* Buying in a bounded number of steps. The first pass gives up a seat after SEAT_RETRY failed CAS. If that
+       left out some free seat, the request is announced and finished before any later operation of the route */
+
+    private Ticket buyWaitFree(String passenger, int route, int departure, int arrival) {
+
+        help(route, announce_phase.get(route - 1));
+
+        int interval = interval(departure, arrival);
+        int index = claimBounded(route, interval, (passenger.hashCode() & 0x7fffffff) % route_size.get(route - 1), null);
+
+        if (index == CONTENDED) {
+            Announce request = new Announce(interval, announce_phase.getAndIncrement(route - 1));
+            int slot = publish(route, request);
+
+            /* Finish the older requests and ours. With every slot taken, we are on our own */
+
+            if (slot >= 0) {
+                help(route, request.phase + 1);
+                announce[route - 1].compareAndSet(slot, request, null);
+                announced.decrementAndGet(route - 1);
+            } else {
+                while (request.decision.get() == null)
+                    serve(route, request);
+            }
+            index = request.decision.get().index;
+        }
+
+        if (index < 0) {
+            failed_buy.increment();
+            return null;
+        }
+        return newTicket(passenger, route, index, departure, arrival);
+    }
+
+    /* Put a request in a free announcement slot, starting from the one of this thread. Return the slot, or -1
+       if all are taken */
+
+    private int publish(int route, Announce request) {
+        AtomicReferenceArray<Announce> slots = announce[route - 1];
+        int home = (int) Thread.currentThread().getId();
+        for (int k = 0; k < ANNOUNCE_SIZE; k++) {
+            int slot = (home + k) & (ANNOUNCE_SIZE - 1);
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, request)) {
+                announced.incrementAndGet(route - 1);
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /* Finish every announced request of the route older than phase limit, oldest first */
+
+    private void help(int route, long limit) {
+        if (announced.get(route - 1) == 0) return;
+        AtomicReferenceArray<Announce> slots = announce[route - 1];
+        while (true) {
+            Announce oldest = null;
+            for (int i = 0; i < ANNOUNCE_SIZE; i++) {
+                Announce request = slots.get(i);
+                if (request != null && request.phase < limit && request.decision.get() == null
+                        && (oldest == null || request.phase < oldest.phase))
+                    oldest = request;
+            }
+            if (oldest == null) return;
+            while (oldest.decision.get() == null)
+                serve(route, oldest);
+        }
+    }
+
+    /* One bounded attempt at deciding an announced request */
+
+    private void serve(int route, Announce request) {
+        int size = route_size.get(route - 1);
+        if (claimBounded(route, request.interval, ThreadLocalRandom.current().nextInt(size), request) == -1)
+            request.decide();
+    }
+
+    /* Claim a free seat with at most SEAT_RETRY CAS per seat. Return the seat, -1 if no seat is free, or
+       CONTENDED if concurrent writers kept us off some free seat. For an announced request, the seat is
+       claimed for it and the request decided, and the search stops as soon as the request is decided */
+
+    private int claimBounded(int route, int interval, int start, Announce request) {
+
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int size = route_size.get(route - 1);
+        int index = start;
+        boolean contended = false;
+
+        for (int k = 0; k < size; k++) {
+            if (request != null && request.decision.get() != null) return CONTENDED;
+            for (int retry = 0; retry < SEAT_RETRY; retry++) {
+                int record = route_record.get(index);
+                if ((record & interval) != 0) {
+                    if (!helpClaim(route, index, record, interval)) break;
+                } else if (request == null) {
+                    if (casSeat(route, index, record, record | interval)) return index;
+                    cas_failure[route - 1].increment();
+                } else if (record < 0) {
+
+                    /* A seat takes one claim at a time. Settle the one there first */
+
+                    resolve(route, index);
+                } else {
+                    Claim claim = new Claim(request, route, index, interval);
+                    if (install(claim, record, record)) {
+                        request.decide(claim);
+                        settleClaim(claim);
+                        return index;
+                    }
+                    cas_failure[route - 1].increment();
+                }
+                if (retry == SEAT_RETRY - 1) contended = true;
+            }
+
+            index++;
+            if (index == size) index = 0;
+        }
+
+        return contended ? CONTENDED : -1;
+    }
+
+    /* Clear the bits of a withdrawn ticket by a single atomic add, which is exact as the bits are ours. The
+       waitlist is not served on this path, which would need the CAS loop of releaseSeat */
+
+    private void releaseWaitFree(Ticket ticket) {
+        int route = ticket.route;
+        help(route, announce_phase.get(route - 1));
+        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+        int interval = interval(ticket.departure, ticket.arrival);
+        afterRelease(route, index, interval, addSeat(route, index, -interval));
+    }
+
+    /* Reset the sold bitmap of a withdrawn ticket */
+
+    private void resetSeat(Ticket ticket) {
+        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+        releaseSeat(ticket.route, index, interval(ticket.departure, ticket.arrival), false);
+    }
+
+    /* Buying without a Ticket object. Return a handle packing (TID << 32 | getHash), or -1 if no seat is free.
+       The search skips flat combining and elimination, which need request objects, so that nothing is
+       allocated while the passenger holds some live ticket, and so is known to the passenger index */
+
+    public long buyPacked(String passenger, int route, int departure, int arrival) {
+
+        if (route_cancelled.get(route - 1) != 0) return -1;
+
+        adaptRoute(route - 1);
+
+        int interval = interval(departure, arrival);
+        boolean best_fit = policy == AllocationPolicy.BEST_FIT;
+        int index = best_fit ? claimAdjoining(route, departure, arrival, interval) : -1;
+        if (index < 0)
+            index = claimCandidate(route, departure, interval);
+        if (index < 0) {
+            int size = route_size.get(route - 1);
+            index = probe(route, interval, (passenger.hashCode() & 0x7fffffff) % size, size, null);
+        }
+        if (index < 0) {
+            failed_buy.increment();
+            return -1;
+        }
+        if (best_fit) addHint(route, index, departure, arrival);
+
+        int id = issue(passenger, route, index, departure, arrival);
+        long handle = (long) id << 32 | getHash(route, index, departure, arrival) & 0xffffffffL;
+
+        /* The same hand-shake with cancelRoute as checkCancel */
+
+        if (route_cancelled.get(route - 1) != 0 && refundPacked(handle, passenger)) return -1;
+        return handle;
+    }
+
+    /* Refunding by a handle from buyPacked */
+
+    public boolean refundPacked(long handle, String passenger) {
+
+        int id = (int) (handle >>> 32);
+        int hash = (int) handle;
+        if (id < 0 || id >= sold_hash.length() || hash == 0xffffffff) return false;
+        if (sold_name[id] == null || !sold_name[id].equals(passenger)) return false;
+        if (!sold_hash.compareAndSet(id, hash, 0xffffffff)) return false;
+
+        int route = hash >>> 12 & 0x3f;
+        int index = hash >>> 18;
+        int departure = hash >>> 6 & 0x3f;
+        removeLive(passenger, route, index, departure, id);
+        releaseSeat(route, index, interval(departure, hash & 0x3f), false);
+        return true;
+    }
+
+    /* Conversions between tickets and handles, for callers who need the object after all. ticketOf returns
+       null unless the handle is live, checked the same way as refundPacked */
+
+    public Ticket ticketOf(long handle) {
+        int id = (int) (handle >>> 32);
+        int hash = (int) handle;
+        if (id < 0 || id >= sold_hash.length() || hash == 0xffffffff) return null;
+        String passenger = sold_name[id];
+        if (passenger == null || sold_hash.get(id) != hash) return null;
+        return unpack(id, hash, passenger);
+    }
+
+    public long handleOf(Ticket ticket) {
+        return ticket.tid << 32 | getHash(ticket) & 0xffffffffL;
+    }
+
+    /* Exchange a ticket for the interval departure-arrival of the same route. The seat is kept if the new
+       interval fits it, otherwise another seat is claimed before the old one is released. The ticket keeps
+       its TID. Return the new ticket, or null if the ticket is invalid or no seat is free, in which case the
+       old one stays valid */
+
+    public Ticket exchangeTicket(Ticket ticket, int departure, int arrival) {
+
+        if (route_cancelled.get(ticket.route - 1) != 0 || !verifyTicket(ticket)) return null;
+
+        int route = ticket.route;
+        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+        int old_interval = interval(ticket.departure, ticket.arrival);
+        int new_interval = interval(departure, arrival);
+
+        /* Claim the new stations first without issuing anything, on the same seat if they are free there.
+           The old ticket stays valid all along */
+
+        int added = new_interval & ~old_interval;
+        int new_index = index;
+        if (!claimStations(route, index, added)) {
+            int size = route_size.get(route - 1);
+            new_index = claimCandidate(route, departure, new_interval);
+            if (new_index < 0)
+                new_index = probe(route, new_interval, (ticket.passenger.hashCode() & 0x7fffffff) % size, size, null);
+            if (new_index < 0) {
+                failed_buy.increment();
+                return null;
+            }
+        }
+        int claimed = new_index == index ? added : new_interval;
+
+        /* Then swap the ledger entry in a single CAS. A refund or cancellation that got the old ticket first
+           wins, and the claimed stations go back */
+
+        Ticket t = makeTicket(ticket.tid, ticket.passenger, route, new_index, departure, arrival);
+        if (!checkTicket(ticket, getHash(t))) {
+            if (claimed != 0) releaseSeat(route, new_index, claimed, false);
+            return null;
+        }
+        removeLive(ticket);
+        addLive(t);
+
+        /* Free the old stations the new ticket does not keep */
+
+        int dropped = new_index == index ? old_interval & ~new_interval : old_interval;
+        if (dropped != 0) releaseSeat(route, index, dropped, false);
+        return checkCancel(t);
+    }
+
+    /* Add stations to a seat if they are all free there. No stations always fit */
+
+    private boolean claimStations(int route, int index, int stations) {
+        if (stations == 0) return true;
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        while (true) {
+            int record = route_record.get(index);
+            if ((record & stations) != 0) {
+                if (helpClaim(route, index, record, stations)) continue;
+                return false;
+            }
+            if (casSeat(route, index, record, record | stations)) return true;
+            cas_failure[route - 1].increment();
+        }
+    }
+
+    /* Get off early: shorten a ticket to arrive at arrival and free the tail of its interval for resale.
+       The ticket keeps its TID and is updated in place */
+
+    public boolean shortenTicket(Ticket ticket, int arrival) {
+
+        if (arrival <= ticket.departure || arrival >= ticket.arrival) return false;
+
+        /* Rewrite the ledger entry first. The old hash no longer refunds, and the dropped stations are
+           still held until they are cleared below */
+
+        if (!checkTicket(ticket, getHash(ticket) & ~0x3f | arrival)) return false;
+
+        /* AtomicIntegerArray has no atomic AND, so the dropped bits are cleared by the release CAS loop,
+           which may also hand them over to a waiter */
+
+        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+        releaseSeat(ticket.route, index, interval(arrival, ticket.arrival), false);
+        ticket.arrival = arrival;
+        return true;
+    }
+
+    /* Clear the freed bits of a seat. If the oldest waiter of the route, or else a buyer in the elimination
+       array, fits the seat once freed, the same write claims the seat for the waiter, so it never looks free
+       in between. That write is the linearization point of the refund, and deciding the waiter for the claim
+       is the one of the buy */
+
+    private void releaseSeat(int route, int index, int freed, boolean exclusive) {
+
+        AtomicIntegerArray route_record = seat_record[route - 1];
+        int released = freed;
+        int new_record;
+
+        while (true) {
+            int old_record = route_record.get(index);
+            int base = old_record & ~freed;
+
+            Waiter waiter = null;
+            if (!waitlist[route - 1].isEmpty())
+                waiter = findWaiter(route, base);
+            if (waiter == null)
+                waiter = findOffer(route, base);
+
+            if (waiter == null) {
+                new_record = base;
+                if (freed == 0) break;
+                if (exclusive) {
+                    setSeat(route, index, new_record);
+                    break;
+                }
+                if (casSeat(route, index, old_record, new_record)) break;
+                cas_failure[route - 1].increment();
+                continue;
+            }
+
+            /* A seat takes one claim at a time. Settle the one there first */
+
+            if (old_record < 0) {
+                resolve(route, index);
+                continue;
+            }
+
+            HandOver handover = new HandOver(waiter, route, index);
+            Claim claim = new Claim(handover, route, index, waiter.interval);
+            if (!install(claim, old_record, base)) {
+                cas_failure[route - 1].increment();
+                continue;
+            }
+            freed = 0;
+
+            /* A waiter who has cancelled or got another seat meanwhile fails the claim, which gives the seat
+               back. Try the next waiter then */
+
+            handover.decide();
+            new_record = settleClaim(claim);
+            if (handover.status() == Pending.SUCCEEDED) {
+                released &= ~waiter.interval;
+                if (waiter.future != null) deliver(route, index, waiter);
+                break;
+            }
+        }
+
+        if (released != 0) afterRelease(route, index, released, new_record);
+    }
+
+    /* Bits freed were just cleared on a seat whose bitmap became record. Spread the news */
+
+    private void afterRelease(int route, int index, int freed, int record) {
+
+        /* The seat is now free at least from the first station of the freed bits */
+
+        candidate[route - 1][Integer.numberOfTrailingZeros(freed) + 1].push(index);
+
+        interest[route - 1].notify(freed, record);
+    }
+
+    /* The oldest undecided waiter of a route that fits a seat whose bitmap is record, or null */
+
+    private Waiter findWaiter(int route, int record) {
+        Iterator<Waiter> it = waitlist[route - 1].iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+
+            /* Waiters who cancelled their future are dropped on the way */
+
+            if (waiter.decision.get() == null && waiter.future.isDone())
+                waiter.decision.compareAndSet(null, Waiter.CANCELLED);
+            if (waiter.decision.get() != null) {
+                it.remove();
+                continue;
+            }
+            if ((waiter.interval & record) == 0) return waiter;
+        }
+        return null;
+    }
+
+    /* An undecided buyer advertised in the elimination array of a route that fits a seat whose bitmap is record */
+
+    private Waiter findOffer(int route, int record) {
+        AtomicReferenceArray<Waiter> slots = elimination[route - 1];
+        for (int i = 0; i < ELIMINATION_SIZE; i++) {
+            Waiter offer = slots.get(i);
+            if (offer != null && offer.decision.get() == null && (offer.interval & record) == 0) return offer;
+        }
+        return null;
+    }
+
+    /* Issue the ticket of a waitlisted waiter who got a seat by hand-over. If the waiter gave up meanwhile,
+       refund it. Buyers in the elimination array issue their tickets themselves */
+
+    private void deliver(int route, int index, Waiter waiter) {
+        Ticket ticket = newTicket(waiter.passenger, route, index, waiter.departure, waiter.arrival);
+        ForkJoinPool.commonPool().execute(() -> {
+            if (!waiter.future.complete(ticket)) refundTicket(ticket);
+        });
+    }
+
+    /* Join the waitlist of a route after a failed buy. The future completes with a ticket handed over by
+       a refund, in the order of joining among the waiters that fit the seat. Cancel the future to leave */
+
+    public CompletableFuture<Ticket> joinWaitlist(String passenger, int route, int departure, int arrival) {
+
+        Waiter waiter = new Waiter(passenger, departure, arrival, interval(departure, arrival), true);
+        waitlist[route - 1].add(waiter);
+
+        /* The waitlist of a cancelled route is never served */
+
+        if (route_cancelled.get(route - 1) != 0) {
+            waiter.future.cancel(false);
+            return waiter.future;
+        }
+
+        /* A seat may have been freed before we were visible to refunds. Try once more now that we are */
+
+        Ticket ticket = buyTicket(passenger, route, departure, arrival);
+        if (ticket == null) return waiter.future;
+
+        if (waiter.decision.compareAndSet(null, Waiter.CANCELLED)) {
+            waitlist[route - 1].remove(waiter);
+            if (!waiter.future.complete(ticket)) refundTicket(ticket);
+            return waiter.future;
+        }
+
+        /* A refund has handed us a seat already, keep that one */
+
+        refundTicket(ticket);
+        return waiter.future;
+    }
+
+    /* Publish a request and wait until some combiner, possibly this thread, has applied it */
+
+    private boolean combine(int route, Request request) {
+
+        /* Slots are shared by thread ids with the same last 7 bits. Go lock-free if the slot is taken */
+
+        int slot = (int) (Thread.currentThread().getId()) & 0x7f;
+        AtomicReferenceArray<Request> slots = publication[route - 1];
+        if (!slots.compareAndSet(slot, null, request)) return false;
+
+        int spin = 0;
+        while (!request.done) {
+            if (combine_lock.get(route - 1) == 0 && combine_lock.compareAndSet(route - 1, 0, 1)) {
+                try {
+                    combinePass(route);
+                } finally {
+                    combine_lock.set(route - 1, 0);
+                }
+            } else if ((++spin & 0x7f) == 0) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return true;
+    }
+
+    /* Apply all pending requests of a route. Only the holder of the combine lock runs this */
+
+    private void combinePass(int route) {
+
+        AtomicReferenceArray<Request> slots = publication[route - 1];
+        int applied = 0;
+
+        for (int i = 0; i < slots.length(); i++) {
+            Request request = slots.get(i);
+            if (request == null) continue;
+            if (request.ticket == null)
+                request.result = buyDirect(request.passenger, route, request.departure, request.arrival);
+            else
+                resetSeat(request.ticket);
+
+            /* Free the slot before signalling, as the owner may publish again right away */
+
+            slots.set(i, null);
+            request.done = true;
+            applied++;
+        }
+
+        combine_pass[route - 1].increment();
+        combine_request[route - 1].add(applied);
+    }
+
+    /* Sample the contention of a route from time to time and switch its mode if needed */
+
+    private void adaptRoute(int route_id) {
+
+        route_ops[route_id].increment();
+        if ((ThreadLocalRandom.current().nextInt() & ADAPT_PERIOD) != 0) return;
+
+        long ops = route_ops[route_id].sumThenReset();
+        long failure = cas_failure[route_id].sumThenReset();
+        long pass = combine_pass[route_id].sumThenReset();
+        long request = combine_request[route_id].sumThenReset();
+
+        /* Go hot when too many CAS fail, go back when combining passes barely batch anything */
+
+        if (route_hot.get(route_id) == 0) {
+            if (failure * 100 > ops * HOT_FAILURE_PERCENT)
+                route_hot.set(route_id, 1);
+        } else {
+            if (request < pass * COLD_BATCH_SIZE)
+                route_hot.set(route_id, 0);
+        }
+
+        /* Additive increase and multiplicative decrease of the admission limit on the same sample */
+
+        if (adaptive_admission) {
+            int limit = admit_limit.get(route_id);
+            if (failure * 100 > ops * SHED_FAILURE_PERCENT)
+                limit = Math.max(1, limit / 2);
+            else
+                limit = Math.min(admit_cap.get(route_id), limit + 1);
+            admit_limit.set(route_id, limit);
+        }
+    }
+
+    /* Cancel a train. Sales of the route stop at once and every live ticket on it is refunded in parallel.
+       Return the refunded tickets */
+
+    public Stream<Ticket> cancelRoute(int route) {
+
+        if (!route_cancelled.compareAndSet(route - 1, 0, 1)) return Stream.empty();
+
+        for (Waiter waiter : waitlist[route - 1])
+            waiter.future.cancel(false);
+
+        /* A buy that published its ticket before seeing the flag is in the index by now */
+
+        IntStream.Builder tids = IntStream.builder();
+        AtomicReferenceArray<AtomicIntegerArray> coaches = live_tid[route - 1];
+        for (int c = 0; c < route_size.get(route - 1) / seat_num; c++) {
+            AtomicIntegerArray slots = coaches.get(c);
+            for (int i = 0; i < slots.length(); i++) {
+                int slot = slots.get(i);
+                if (slot != 0) tids.add(slot - 1);
+            }
+        }
+
+        List<Ticket> refunded = tids.build().parallel()
+                .mapToObj(id -> cancelTicket(route, id))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return refunded.stream();
+    }
+
+    /* Whether a route has been cancelled */
+
+    public boolean isCancelled(int route) {
+        return route_cancelled.get(route - 1) != 0;
+    }
+
+    /* Rebuild a live ticket of a cancelled route from the sold records and refund it, or return null if it is
+       gone already */
+
+    private Ticket cancelTicket(int route, int id) {
+        Ticket t = soldTicket(id);
+        if (t == null || t.route != route || !checkRefund(t)) return null;
+        resetSeat(t);
+        return t;
+    }
+
+    /* A ticket issued on a route cancelled meanwhile is refunded on the spot, unless the cancellation has
+       got it. This pairs with cancelRoute: either the ticket is in the index when it scans, or we see the
+       flag here */
+
+    private Ticket checkCancel(Ticket t) {
+        if (t == null || route_cancelled.get(t.route - 1) == 0) return t;
+        if (!checkRefund(t)) return t;
+        resetSeat(t);
+        return null;
+    }
+
+    /* Rebuild a sold ticket from the sold records, or return null if it is refunded */
+
+    private Ticket soldTicket(int id) {
+        int hash = sold_hash.get(id);
+        String passenger = sold_name[id];
+        if (hash == 0xffffffff || passenger == null) return null;
+        return unpack(id, hash, passenger);
+    }
+
+    private Ticket unpack(int id, int hash, String passenger) {
+        return makeTicket(id, passenger, hash >>> 12 & 0x3f, hash >>> 18, hash >>> 6 & 0x3f, hash & 0x3f);
+    }
+
+    /* The live tickets of a passenger */
+
+    public List<Ticket> ticketsOf(String passenger) {
+        int[] tids = passengers.get(passenger);
+        List<Ticket> tickets = new ArrayList<>(tids.length);
+        for (int id : tids) {
+            Ticket t = soldTicket(id);
+            if (t != null && t.passenger.equals(passenger)) tickets.add(t);
+        }
+        return tickets;
+    }
+
+    /* Keep the live ticket indices of passengers and routes. The route slot is written last, see checkCancel */
+
+    private void addLive(Ticket t) {
+        addLive(t.passenger, t.route, (t.coach - 1) * seat_num + t.seat - 1, t.departure, (int) t.tid);
+    }
+
+    private void addLive(String passenger, int route, int index, int departure, int id) {
+        passengers.add(passenger, id);
+        live_tid[route - 1].get(index / seat_num).set(index % seat_num * (station_num - 1) + departure - 1, id + 1);
+    }
+
+    private void removeLive(Ticket t) {
+        removeLive(t.passenger, t.route, (t.coach - 1) * seat_num + t.seat - 1, t.departure, (int) t.tid);
+    }
+
+    private void removeLive(String passenger, int route, int index, int departure, int id) {
+        live_tid[route - 1].get(index / seat_num)
+                .compareAndSet(index % seat_num * (station_num - 1) + departure - 1, id + 1, 0);
+        passengers.remove(passenger, id);
+    }
+
+    /* Whether a ticket is sold and not refunded, without touching the sold records */
+
+    public boolean verifyTicket(Ticket ticket) {
+        if (ticket.tid < 0 || ticket.tid >= sold_hash.length()) return false;
+        return checkName(ticket) && sold_hash.get((int) ticket.tid) == getHash(ticket);
+    }
+
+    /* Verify a batch of handles from buyPacked against the passengers holding them. valid[i] tells whether
+       handles[i] is live, and the number of live handles is returned. The ledger is read in two passes:
+       the first only loads hashes, so that the loads of different handles are independent and overlap in
+       flight, and the second compares names for the handles left */
+
+    public int verifyTickets(long[] handles, String[] passengers, boolean[] valid) {
+
+        int n = handles.length;
+        int limit = sold_hash.length();
+
+        for (int i = 0; i < n; i++) {
+            long handle = handles[i];
+            int id = (int) (handle >>> 32);
+            int hash = (int) handle;
+            valid[i] = id >= 0 && id < limit && hash != 0xffffffff
+                    && sold_hash.getAcquire(id) == hash;
+        }
+
+        String[] names = sold_name;
+        int cnt = 0;
+        for (int i = 0; i < n; i++) {
+            if (!valid[i]) continue;
+            String name = names[(int) (handles[i] >>> 32)];
+            valid[i] = name != null && name.equals(passengers[i]);
+            if (valid[i]) cnt++;
+        }
+
+        return cnt;
+    }
+
+    /* Validate a ticket against the sold records and withdraw it. At most one caller succeeds for a ticket */
+
+    private boolean checkRefund(Ticket ticket) {
+        if (!checkTicket(ticket, 0xffffffff)) return false;
+        removeLive(ticket);
+        return true;
+    }
+
+    /* Validate a ticket against the sold records and replace its entry by mark */
+
+    private boolean checkTicket(Ticket ticket, int mark) {
+
+        if (!checkName(ticket)) return false;
+
+        /* Refunding a ticket with wrong information (except name) will fail */
+
+        int t_hash = getHash(ticket);
+        return sold_hash.compareAndSet((int) ticket.tid, t_hash, mark);
+    }
+
+    /* The read-only part of checkTicket */
+
+    private boolean checkName(Ticket ticket) {
+
+        int id = (int) ticket.tid;
+
+        /* Refunding an unsold ticket will fail */
+
+        if (sold_name[id] == null) return false;
+
+        /* Refunding a ticket with wrong passenger name will fail */
+
+        return Objects.equals(ticket.passenger, sold_name[id]);
+    }
+
+    /* Buying for the only writer of a route. Without competing writers a plain store replaces the CAS loop */
+
+    Ticket buyTicketExclusive(String passenger, int route, int departure, int arrival) {
+
+        if (route_cancelled.get(route - 1) != 0) return null;
+
+        int interval = interval(departure, arrival);
+        AtomicIntegerArray route_record = seat_record[route - 1];
+
+        int size = route_size.get(route - 1);
+        int end = (passenger.hashCode() & 0x7fffffff) % size;
+        int index = end;
+
+        do {
+            int record = route_record.get(index);
+            while ((record & interval) != 0 && helpClaim(route, index, record, interval))
+                record = route_record.get(index);
+            if ((record & interval) == 0) {
+                setSeat(route, index, record | interval);
+                return checkCancel(newTicket(passenger, route, index, departure, arrival));
+            }
+
+            index++;
+            if (index == size) index = 0;
+
+        } while (index != end);
+
+        return null;
+    }
+
+    /* Refunding for the only writer of a route */
+
+    boolean refundTicketExclusive(Ticket ticket) {
+
+        if (!checkRefund(ticket)) return false;
+
+        int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+        releaseSeat(ticket.route, index, interval(ticket.departure, ticket.arrival), true);
 
         return true;
     }
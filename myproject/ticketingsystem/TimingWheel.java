@@ -0,0 +1,83 @@
+package ticketingsystem;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* A hashed timing wheel. An entry due at tick t waits in bucket t % wheel size, and every tick only the
+   current bucket is visited, so the cost of expiring does not grow with the entries pending elsewhere */
+
+final class TimingWheel {
+
+    /* Something that expires. Entries done earlier should make expire() a no-op rather than be removed */
+
+    abstract static class Entry {
+        long deadline;
+
+        abstract void expire();
+    }
+
+    /* Buckets belong to the ticker thread alone. Other threads only push onto the incoming queue, which the
+       ticker drains into the buckets before each tick, so an entry can never be added behind the ticker */
+
+    private final ArrayList<Entry>[] bucket;
+    private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final int mask;
+    private final long tick_ns;
+    private final long origin = System.nanoTime();
+
+    /* Last tick that has been processed. Only the ticker thread reads and writes it */
+
+    private long current = 0;
+
+    /* Wheel size is rounded up to a power of 2 */
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(int wheel_size, long tick_ns) {
+        int size = Integer.highestOneBit(Math.max(1, wheel_size - 1)) << 1;
+        bucket = new ArrayList[size];
+        for (int i = 0; i < size; i++)
+            bucket[i] = new ArrayList<>();
+        mask = size - 1;
+        this.tick_ns = tick_ns;
+    }
+
+    /* Schedule an entry to expire after delay_ns. Entries due before the next tick wait for it */
+
+    void schedule(Entry entry, long delay_ns) {
+        long now = (System.nanoTime() - origin) / tick_ns;
+        entry.deadline = now + Math.max(1, (delay_ns + tick_ns - 1) / tick_ns);
+        incoming.add(entry);
+    }
+
+    /* Process every tick up to now. Called by a single ticker thread */
+
+    void advance() {
+        long now = (System.nanoTime() - origin) / tick_ns;
+        while (current < now) {
+            long tick = current + 1;
+
+            /* The ticker may have passed the deadline of a new entry meanwhile, so never go below this tick */
+
+            Entry entry;
+            while ((entry = incoming.poll()) != null)
+                bucket[(int) (Math.max(entry.deadline, tick) & mask)].add(entry);
+
+            /* Entries of later rounds stay for the next time round. They are moved down over the expired ones
+               and the list is cut once, so that a bucket costs linear time however many entries expire */
+
+            ArrayList<Entry> due = bucket[(int) (tick & mask)];
+            int kept = 0;
+            for (int i = 0; i < due.size(); i++) {
+                entry = due.get(i);
+                if (entry.deadline > tick) {
+                    due.set(kept++, entry);
+                    continue;
+                }
+                entry.expire();
+            }
+            due.subList(kept, due.size()).clear();
+            current = tick;
+        }
+    }
+
+}